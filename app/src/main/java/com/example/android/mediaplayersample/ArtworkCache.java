@@ -0,0 +1,362 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Serves the embedded artwork of tracks as square thumbnails of exactly
+ * {@code R.dimen.artwork_size}, from two levels of cache:
+ * <ul>
+ * <li>an in-memory LRU of decoded thumbnails, bounded in bytes;</li>
+ * <li>a JPEG file per track in the cache directory, named after the track, its fingerprint and
+ * the thumbnail size. Tracks without artwork get an empty file, so they aren't read again.</li>
+ * </ul>
+ * Only a track that has neither is opened, and its picture is then decoded with the largest
+ * power of two {@code inSampleSize} that still covers the thumbnail, never at full resolution.
+ * <p>
+ * All thumbnails have the same size and configuration, so thumbnails that left the LRU and are
+ * no longer shown go to a small pool and are decoded into again through
+ * {@link BitmapFactory.Options#inBitmap}: scrolling back over the library reads the files
+ * without allocating. A thumbnail handed out by {@link #getArtwork(String)} must therefore be
+ * given back with {@link #release(Bitmap)} once its view stops showing it.
+ * <p>
+ * A single low-priority thread does the decoding, newest request first, so the rows that just
+ * scrolled into view come before the ones that scrolled past. Requests cancelled before the
+ * thread gets to them are dropped unread.
+ */
+final class ArtworkCache {
+
+    private static final String TAG = "ArtworkCache";
+    private static final String DIRECTORY = "artwork";
+    private static final int JPEG_QUALITY = 85;
+    private static final int MAX_POOLED = 8;
+    private static final int MAX_IN_MEMORY_BYTES = 8 * 1024 * 1024;
+    private static volatile ArtworkCache sInstance;
+
+    private final int mSize;
+    private final MediaLocator mLocator;
+    private final MappedMediaCache mMediaCache;
+    private final File mDirectory;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingDeque<Request> mQueue = new LinkedBlockingDeque<>();
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    // Guarded by itself. Thumbnails free to be decoded into.
+    private final ArrayDeque<Bitmap> mPool = new ArrayDeque<>(MAX_POOLED);
+    // Only touched on the main thread.
+    private final LruCache<String, Bitmap> mRecent;
+    private final Set<String> mWithoutArtwork = new HashSet<>();
+    private final Map<Bitmap, Integer> mShown = new IdentityHashMap<>(); // number of views
+    private final Set<Bitmap> mEvictedShown = new HashSet<>();
+    // Only touched on the decoding thread.
+    private MediaMetadataRetriever mRetriever;
+
+    private ArtworkCache(Context context) {
+        Context appContext = context.getApplicationContext();
+        mSize = appContext.getResources().getDimensionPixelSize(R.dimen.artwork_size);
+        mLocator = MediaLocator.getInstance(appContext);
+        mMediaCache = MappedMediaCache.getInstance(appContext);
+        mDirectory = new File(appContext.getCacheDir(), DIRECTORY);
+        int maxBytes = (int) Math.min(MAX_IN_MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        mRecent = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String resourceName, Bitmap thumbnail) {
+                return thumbnail.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String resourceName, Bitmap oldValue,
+                                        Bitmap newValue) {
+                if (mShown.containsKey(oldValue)) {
+                    mEvictedShown.add(oldValue);
+                } else {
+                    recycle(oldValue);
+                }
+            }
+        };
+        Thread thread = new Thread(this::decodeQueued, "ArtworkDecoder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static ArtworkCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (ArtworkCache.class) {
+                if (sInstance == null) {
+                    sInstance = new ArtworkCache(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the artwork thumbnail of a track. The future completes on the main thread, right
+     * away if the thumbnail is in memory, with {@code null} if the track has no artwork. A
+     * request that is no longer needed should be cancelled, which also skips its decoding if it
+     * hasn't started yet.
+     */
+    CompletableFuture<Bitmap> getArtwork(String resourceName) {
+        Bitmap recent = mRecent.get(resourceName);
+        if (recent != null) {
+            acquire(recent);
+            return CompletableFuture.completedFuture(recent);
+        }
+        if (mWithoutArtwork.contains(resourceName)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Request request = new Request(resourceName);
+        mQueue.offerFirst(request);
+        return request.mResult;
+    }
+
+    /**
+     * Gives back a thumbnail from {@link #getArtwork(String)} that a view no longer shows. Must
+     * be called on the main thread.
+     */
+    void release(Bitmap thumbnail) {
+        Integer views = mShown.remove(thumbnail);
+        if (views == null) {
+            return;
+        }
+        if (views > 1) {
+            mShown.put(thumbnail, views - 1);
+        } else if (mEvictedShown.remove(thumbnail)) {
+            recycle(thumbnail);
+        }
+    }
+
+    private void acquire(Bitmap thumbnail) {
+        Integer views = mShown.get(thumbnail);
+        mShown.put(thumbnail, views == null ? 1 : views + 1);
+    }
+
+    private void decodeQueued() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Request request;
+            try {
+                request = mQueue.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (request.mResult.isCancelled()) {
+                continue;
+            }
+            try {
+                Bitmap thumbnail = loadOrExtract(request.mResourceName);
+                mMainHandler.post(() -> deliver(request, thumbnail));
+            } catch (IOException | RuntimeException e) {
+                // Not remembered as having no artwork, the next bind tries again.
+                Log.w(TAG, "unable to load artwork of " + request.mResourceName, e);
+                mMainHandler.post(() -> request.mResult.complete(null));
+            }
+        }
+    }
+
+    private void deliver(Request request, Bitmap thumbnail) {
+        String resourceName = request.mResourceName;
+        if (thumbnail == null) {
+            mWithoutArtwork.add(resourceName);
+            request.mResult.complete(null);
+            return;
+        }
+        // Another request for the same track may have been decoded in the meantime.
+        Bitmap recent = mRecent.get(resourceName);
+        if (recent != null) {
+            recycle(thumbnail);
+            thumbnail = recent;
+        } else {
+            mRecent.put(resourceName, thumbnail);
+        }
+        acquire(thumbnail);
+        if (!request.mResult.complete(thumbnail)) {
+            release(thumbnail); // cancelled while decoding
+        }
+    }
+
+    /**
+     * Returns the thumbnail of a track, from its cache file if there is one, otherwise from the
+     * picture embedded in the track, which is then written to the cache.
+     *
+     * @return the thumbnail, or {@code null} if the track has no artwork
+     */
+    private Bitmap loadOrExtract(String resourceName) throws IOException {
+        int id = mLocator.getId(resourceName);
+        if (id == 0) {
+            throw new IOException("no such raw resource");
+        }
+        // Files are fingerprinted by a single fstat, mapped outside the MappedMediaCache so
+        // that scrolling doesn't evict the tracks about to be played. Raw resources have their
+        // content fingerprint computed once in the cache.
+        MappedMedia media = MediaLocator.isFile(resourceName)
+                ? mLocator.map(id) : mMediaCache.get(id);
+        String cacheKey = WaveformCache.getCacheKey(resourceName);
+        AtomicFile file = new AtomicFile(new File(mDirectory, cacheKey + "@"
+                + Long.toHexString(media.fingerprint()) + "-" + mSize));
+        File baseFile = file.getBaseFile();
+        if (baseFile.exists()) {
+            if (baseFile.length() == 0) {
+                return null;
+            }
+            Bitmap thumbnail = decodeThumbnail(baseFile);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+            Log.w(TAG, "discarding unreadable " + baseFile);
+            file.delete();
+        }
+
+        if (mRetriever == null) {
+            mRetriever = new MediaMetadataRetriever();
+        }
+        mRetriever.setDataSource(media.newDataSource());
+        byte[] picture = mRetriever.getEmbeddedPicture();
+        Bitmap thumbnail = picture == null ? null : createThumbnail(picture);
+        deleteOutdated(cacheKey);
+        write(file, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Decodes a cache file into a pooled thumbnail if one is free.
+     */
+    private Bitmap decodeThumbnail(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = obtainPooled();
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit, the file wasn't written at the current size.
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * Decodes an embedded picture at the smallest power of two scale that covers the thumbnail,
+     * then center crops it to the thumbnail size.
+     */
+    private Bitmap createThumbnail(byte[] picture) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize =
+                getSampleSize(Math.min(options.outWidth, options.outHeight), mSize);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap sampled = BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        Bitmap thumbnail = obtainPooled();
+        if (thumbnail == null) {
+            thumbnail = Bitmap.createBitmap(mSize, mSize, Bitmap.Config.RGB_565);
+        }
+        float scale = Math.max((float) mSize / sampled.getWidth(),
+                (float) mSize / sampled.getHeight());
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((mSize - sampled.getWidth() * scale) / 2,
+                (mSize - sampled.getHeight() * scale) / 2);
+        new Canvas(thumbnail).drawBitmap(sampled, matrix, mScalePaint);
+        sampled.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * Returns the largest power of two by which a picture whose shorter side is {@code side}
+     * can be subsampled and still be at least {@code size} across.
+     */
+    static int getSampleSize(int side, int size) {
+        int sampleSize = 1;
+        while (side / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap obtainPooled() {
+        synchronized (mPool) {
+            return mPool.pollFirst();
+        }
+    }
+
+    private void recycle(Bitmap thumbnail) {
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED) {
+                mPool.addFirst(thumbnail);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code thumbnail} to the cache, or an empty file if the track has no artwork.
+     */
+    private void write(AtomicFile file, Bitmap thumbnail) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("unable to create " + mDirectory);
+        }
+        FileOutputStream out = file.startWrite();
+        try {
+            if (thumbnail != null
+                    && !thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("unable to compress the thumbnail");
+            }
+            file.finishWrite(out);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the files left from earlier versions of a track or other thumbnail sizes.
+     */
+    private void deleteOutdated(String cacheKey) {
+        File[] outdated = mDirectory.listFiles(
+                (directory, name) -> name.startsWith(cacheKey + "@"));
+        if (outdated != null) {
+            for (File file : outdated) {
+                file.delete();
+            }
+        }
+    }
+
+    private static final class Request {
+
+        final String mResourceName;
+        final CompletableFuture<Bitmap> mResult = new CompletableFuture<>();
+
+        Request(String resourceName) {
+            mResourceName = resourceName;
+        }
+    }
+}
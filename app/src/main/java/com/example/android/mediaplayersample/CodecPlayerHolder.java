@@ -0,0 +1,868 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements the {@link PlayerAdapter} by decoding with {@link MediaExtractor} and
+ * {@link MediaCodec} and playing the PCM through an {@link AudioTrack}, instead of leaving
+ * buffering and decoding to {@link MediaPlayer}.
+ * <p>
+ * A decoder thread copies codec output into a fixed {@link PcmBufferPool} and an audio thread
+ * writes the filled buffers to the track, so steady-state playback allocates nothing. Decode
+ * throughput and track underruns are reported through
+ * {@link PlaybackInfoListener#onDecoderStatsUpdated(float, int)}, which like every callback the
+ * {@link PlaybackDispatcher} hands over to the main thread. Tracks are not chained, so
+ * {@link #setUpcomingMedia(int...)} only warms up their mappings. Closing a session only
+ * silences it and signals its threads; the decoder thread releases the native objects as it
+ * exits, so loading a track never waits for the previous one to wind down.
+ * <p>
+ * MP3 frames are read straight from the mapping through the track's {@link Mp3SeekIndex}
+ * rather than through the extractor, which has to estimate where a time is in a VBR stream.
+ * A seek then starts at the exact frame, and the duration is exact too.
+ * <p>
+ * The holder goes through the states of {@link MediaPlayerHolder#isLegalTransition}, so both
+ * report the same {@link PlaybackInfoListener.State}s in the same order.
+ * <p>
+ * The track is first built for the format the extractor reports, and rebuilt when the decoder
+ * outputs another one, as an HE-AAC decoder does once it finds the SBR layer that doubles the
+ * sample rate.
+ */
+public final class CodecPlayerHolder implements PlayerAdapter {
+
+    private static final String TAG = "CodecPlayerHolder";
+    static final String MIME_MP3 = "audio/mpeg";
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final int POOL_BUFFER_COUNT = 8;
+    private static final int POOL_BUFFER_BYTES = 16 * 1024;
+    private static final long STATS_INTERVAL_US = 1000000; //report once per decoded second
+    private static final long DRAIN_POLL_MS = 10;
+    private static final long WRITE_POLL_MS = 5;
+    private static final long JOIN_TIMEOUT_MS = 500;
+
+    private static final ExecutorService sLoader =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CodecLoader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final MappedMediaCache mMediaCache;
+    private final LoudnessIndex mLoudnessIndex;
+    private final MediaPreloader mPreloader;
+    private final SeekIndexCache mSeekIndexes;
+    private final int mAudioSessionId;
+    private final PlaybackTelemetry mTelemetry = PlaybackTelemetry.getInstance();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final PcmBufferPool mPool = new PcmBufferPool(POOL_BUFFER_COUNT, POOL_BUFFER_BYTES);
+    private final PlaybackDispatcher mDispatcher = new PlaybackDispatcher();
+    private volatile boolean mProgressVisible = true;
+    @PlaybackInfoListener.State
+    private volatile int mState = PlaybackInfoListener.State.IDLE;
+    private Session mSession;
+    private int mLoadRequest;
+    private CompletableFuture<Integer> mPendingLoad;
+    private boolean mPlayWhenPrepared;
+
+    public CodecPlayerHolder(Context context) {
+        this(context, ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE))
+                .generateAudioSessionId());
+    }
+
+    /**
+     * Plays in the given audio session, shared with another player.
+     */
+    public CodecPlayerHolder(Context context, int audioSessionId) {
+        mMediaCache = MappedMediaCache.getInstance(context);
+        mLoudnessIndex = LoudnessIndex.getInstance(context);
+        mPreloader = MediaPreloader.getInstance(context);
+        mSeekIndexes = SeekIndexCache.getInstance(context);
+        mAudioSessionId = audioSessionId;
+    }
+
+    @PlaybackInfoListener.State
+    int getState() {
+        return mState;
+    }
+
+    private void moveTo(@PlaybackInfoListener.State int state) {
+        if (!MediaPlayerHolder.isLegalTransition(mState, state)) {
+            throw new IllegalStateException("Illegal transition "
+                    + PlaybackInfoListener.convertStateToString(mState) + " -> "
+                    + PlaybackInfoListener.convertStateToString(state));
+        }
+        mState = state;
+        mDispatcher.onStateChanged(state);
+    }
+
+    /**
+     * Whether the session has media it can play, seek in and report the duration of.
+     */
+    private boolean hasPreparedMedia() {
+        return MediaPlayerHolder.isLegalTransition(mState, PlaybackInfoListener.State.STOPPED);
+    }
+
+    @Override
+    public void setPlaybackInfoListener(PlaybackInfoListener listener) {
+        mDispatcher.setListener(listener);
+    }
+
+    // Implements PlaybackControl.
+    @Override
+    public void loadMedia(int resourceId) {
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.LOAD_MEDIA);
+        try {
+            loadMediaNow(resourceId);
+        } finally {
+            mTelemetry.endSection(PlaybackTelemetry.Timer.LOAD_MEDIA, start);
+        }
+    }
+
+    private void loadMediaNow(int resourceId) {
+        release();
+        moveTo(PlaybackInfoListener.State.PREPARING);
+        try {
+            mSession = open(resourceId);
+        } catch (IOException | RuntimeException e) {
+            moveTo(PlaybackInfoListener.State.ERROR);
+            reportError("unable to load media: " + e.getMessage());
+            return;
+        }
+        mSession.start();
+        moveTo(PlaybackInfoListener.State.PREPARED);
+        initializeProgressCallback();
+    }
+
+    @Override
+    public CompletableFuture<Integer> loadMediaAsync(int resourceId, boolean playWhenPrepared) {
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.LOAD_MEDIA);
+        try {
+            return loadMediaAsyncNow(resourceId, playWhenPrepared);
+        } finally {
+            mTelemetry.endSection(PlaybackTelemetry.Timer.LOAD_MEDIA, start);
+        }
+    }
+
+    private CompletableFuture<Integer> loadMediaAsyncNow(int resourceId,
+                                                         boolean playWhenPrepared) {
+        release();
+        final int request = ++mLoadRequest;
+        final CompletableFuture<Integer> load = new CompletableFuture<>();
+        mPendingLoad = load;
+        mPlayWhenPrepared = playWhenPrepared;
+        moveTo(PlaybackInfoListener.State.PREPARING);
+
+        sLoader.execute(() -> {
+            Session session = null;
+            Exception error = null;
+            try {
+                mLoudnessIndex.loadAnalyzed(); // for the gain of the track
+                session = open(resourceId);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            final Session opened = session;
+            final Exception failure = error;
+            mMainHandler.post(() -> {
+                if (request != mLoadRequest) {
+                    if (opened != null) {
+                        opened.close(); // superseded by another load
+                    }
+                    return;
+                }
+                mPendingLoad = null;
+                if (failure != null) {
+                    moveTo(PlaybackInfoListener.State.ERROR);
+                    reportError("unable to load media: " + failure.getMessage());
+                    load.completeExceptionally(failure);
+                    return;
+                }
+                mSession = opened;
+                mSession.start();
+                moveTo(PlaybackInfoListener.State.PREPARED);
+                initializeProgressCallback();
+                if (mPlayWhenPrepared) {
+                    play();
+                }
+                load.complete(opened.mDurationMs);
+            });
+        });
+        return load;
+    }
+
+    @Override
+    public void setUpcomingMedia(int... resourceIds) {
+        // Tracks are not chained, warming up their mappings is all that can be done ahead.
+        for (int resourceId : resourceIds) {
+            mPreloader.warmUp(resourceId);
+        }
+    }
+
+    @Override
+    public void release() {
+        mLoadRequest++;
+        if (mPendingLoad != null) {
+            mPendingLoad.cancel(false);
+            mPendingLoad = null;
+        }
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        if (mState != PlaybackInfoListener.State.IDLE) {
+            moveTo(PlaybackInfoListener.State.IDLE);
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mState == PlaybackInfoListener.State.PLAYING;
+    }
+
+    @Override
+    public void play() {
+        if (mState == PlaybackInfoListener.State.PREPARING) {
+            mPlayWhenPrepared = true; // start as soon as the media is prepared
+            return;
+        }
+        if (!MediaPlayerHolder.isLegalTransition(mState, PlaybackInfoListener.State.PLAYING)) {
+            return;
+        }
+        if (mState == PlaybackInfoListener.State.COMPLETED) {
+            mSession.mSeekRequestUs.set(0); // played again from the start, like MediaPlayer
+        }
+        mSession.play();
+        moveTo(PlaybackInfoListener.State.PLAYING);
+    }
+
+    /**
+     * Rewinds to the start and stays prepared, see
+     * {@link PlaybackInfoListener.State#STOPPED}.
+     */
+    @Override
+    public void reset() {
+        if (mState == PlaybackInfoListener.State.PREPARING) {
+            mPlayWhenPrepared = false;
+            return;
+        }
+        if (!MediaPlayerHolder.isLegalTransition(mState, PlaybackInfoListener.State.STOPPED)) {
+            return;
+        }
+        mSession.pause();
+        mSession.mSeekRequestUs.set(0);
+        moveTo(PlaybackInfoListener.State.STOPPED);
+        mDispatcher.resetPosition(0);
+    }
+
+    @Override
+    public void pause() {
+        if (mState == PlaybackInfoListener.State.PREPARING) {
+            mPlayWhenPrepared = false;
+            return;
+        }
+        if (!MediaPlayerHolder.isLegalTransition(mState, PlaybackInfoListener.State.PAUSED)) {
+            return;
+        }
+        mSession.pause();
+        moveTo(PlaybackInfoListener.State.PAUSED);
+    }
+
+    @Override
+    public void initializeProgressCallback() {
+        if (hasPreparedMedia()) {
+            mDispatcher.onDurationChanged(mSession.mDurationMs);
+            mDispatcher.resetPosition(0);
+        }
+    }
+
+    @Override
+    public void seekTo(int position) {
+        if (hasPreparedMedia()) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.SEEKS);
+            mSession.mSeekRequestUs.set(position * 1000L);
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mSession != null ? (int) mSession.getPositionMs() : 0;
+    }
+
+    @Override
+    public int getAudioSessionId() {
+        return mAudioSessionId;
+    }
+
+    @Override
+    public void setProgressVisible(boolean visible) {
+        mProgressVisible = visible;
+    }
+
+    private void reportError(String message) {
+        Log.w(TAG, message);
+        mDispatcher.onError(message);
+    }
+
+    /**
+     * Stops a session whose decoder or writer thread failed; it needs a new load.
+     */
+    private void onSessionFailed(Session session, String message) {
+        if (session != mSession || mState == PlaybackInfoListener.State.IDLE) {
+            return;
+        }
+        session.pause();
+        moveTo(PlaybackInfoListener.State.ERROR);
+        reportError(message);
+    }
+
+    private void onSessionCompleted(Session session) {
+        if (session != mSession || mState != PlaybackInfoListener.State.PLAYING) {
+            return;
+        }
+        session.mPlaying = false;
+        mDispatcher.resetPosition(0);
+        moveTo(PlaybackInfoListener.State.COMPLETED);
+        mDispatcher.onPlaybackCompleted();
+    }
+
+    /**
+     * Opens the resource and builds the extractor, decoder and track for it. Runs off the main
+     * thread when called from {@link #loadMediaAsync(int, boolean)}.
+     */
+    private Session open(int resourceId) throws IOException {
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.PREPARE);
+        try {
+            return openNow(resourceId);
+        } catch (IOException | RuntimeException e) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+            throw e;
+        } finally {
+            mTelemetry.endSection(PlaybackTelemetry.Timer.PREPARE, start);
+        }
+    }
+
+    private Session openNow(int resourceId) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            MappedMedia media = mMediaCache.get(resourceId);
+            extractor.setDataSource(media.newDataSource());
+            MediaFormat format = TrackDecoder.selectAudioTrack(extractor);
+            Mp3SeekIndex seekIndex = MIME_MP3.equals(format.getString(MediaFormat.KEY_MIME))
+                    ? mSeekIndexes.get(media) : null;
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            // Only a guess until the decoder reports its output format.
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            float gain = mLoudnessIndex.getGain(media);
+            AudioTrack track = buildTrack(sampleRate, channels, gain);
+            int durationMs;
+            if (seekIndex != null) {
+                durationMs = (int) (seekIndex.getDurationUs() / 1000);
+            } else {
+                durationMs = format.containsKey(MediaFormat.KEY_DURATION)
+                        ? (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000) : 0;
+            }
+            return new Session(extractor, seekIndex != null ? media.buffer() : null, seekIndex,
+                    codec, track, sampleRate, channels, gain, durationMs);
+        } catch (IOException | RuntimeException e) {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            throw e;
+        }
+    }
+
+    private AudioTrack buildTrack(int sampleRate, int channels, float gain) {
+        AudioFormat.Builder format = new AudioFormat.Builder()
+                .setSampleRate(sampleRate)
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT);
+        if (channels == 1) {
+            format.setChannelMask(AudioFormat.CHANNEL_OUT_MONO);
+        } else if (channels == 2) {
+            format.setChannelMask(AudioFormat.CHANNEL_OUT_STEREO);
+        } else {
+            format.setChannelIndexMask((1 << channels) - 1);
+        }
+        AudioFormat audioFormat = format.build();
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate,
+                audioFormat.getChannelMask(), AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(audioFormat)
+                .setBufferSizeInBytes(Math.max(minBufferSize * 2, POOL_BUFFER_BYTES))
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setSessionId(mAudioSessionId)
+                .build();
+        track.setVolume(gain);
+        return track;
+    }
+
+    /**
+     * Everything needed to play one track: the native objects plus the decoder and audio
+     * threads that move PCM between them.
+     */
+    private final class Session {
+
+        final MediaExtractor mExtractor;
+        // With a seek index, MP3 frames are read from the mapping instead of the extractor.
+        final ByteBuffer mFrames;
+        final Mp3SeekIndex mSeekIndex;
+        final MediaCodec mCodec;
+        final float mGain;
+        final int mDurationMs;
+        final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        // Per session, so a closing session's threads never hand PCM to the next one.
+        final ArrayBlockingQueue<PcmBufferPool.Chunk> mFilled =
+                new ArrayBlockingQueue<>(POOL_BUFFER_COUNT);
+        final AtomicBoolean mReleased = new AtomicBoolean();
+        final AtomicLong mSeekRequestUs = new AtomicLong(-1);
+        final Object mTrackLock = new Object();
+        final Thread mDecoderThread = new Thread(this::decode, "CodecDecoder");
+        final Thread mWriterThread = new Thread(this::write, "CodecWriter");
+        volatile boolean mRunning;
+        volatile boolean mDecoderDone = true; // until start()
+        volatile boolean mPlaying;
+        volatile int mGeneration;
+        volatile long mBasePositionMs;
+        // Replaced by the writer thread when the output format changes, under mTrackLock.
+        AudioTrack mTrack;
+        int mSampleRate;
+        int mChannelCount;
+
+        // Only touched by the decoder thread.
+        private int mOutputSampleRate;
+        private int mOutputChannelCount;
+        private int mNextFrame;
+        private long mSampleTimeUs;
+        private long mSkipUntilUs; // output before this only primed the decoder after a seek
+
+        // Only touched by the writer thread.
+        private int mWrittenGeneration;
+        private long mFramesWritten;
+        private long mLastPositionReportMs;
+
+        Session(MediaExtractor extractor, ByteBuffer frames, Mp3SeekIndex seekIndex,
+                MediaCodec codec, AudioTrack track, int sampleRate, int channelCount, float gain,
+                int durationMs) {
+            mExtractor = extractor;
+            mFrames = frames;
+            mSeekIndex = seekIndex;
+            mCodec = codec;
+            mTrack = track;
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mOutputSampleRate = sampleRate;
+            mOutputChannelCount = channelCount;
+            mGain = gain;
+            mDurationMs = durationMs;
+        }
+
+        void start() {
+            mRunning = true;
+            mDecoderDone = false;
+            mDecoderThread.start();
+            mWriterThread.start();
+        }
+
+        void play() {
+            synchronized (mTrackLock) {
+                mTrack.play();
+                mPlaying = true;
+            }
+        }
+
+        void pause() {
+            synchronized (mTrackLock) {
+                mPlaying = false;
+                if (mTrack.getState() == AudioTrack.STATE_INITIALIZED) {
+                    mTrack.pause();
+                }
+            }
+        }
+
+        /**
+         * Hands a failure of the decoder or writer thread over to the main thread, unless the
+         * session is being closed anyway.
+         */
+        private void fail(String message) {
+            if (mRunning) {
+                mMainHandler.post(() -> onSessionFailed(this, message));
+            }
+        }
+
+        /**
+         * Silences the session and stops its threads without waiting for them. The decoder
+         * thread releases everything as it exits; if it isn't running, the loader thread does.
+         */
+        void close() {
+            mRunning = false;
+            synchronized (mTrackLock) {
+                mPlaying = false;
+                if (mTrack.getState() == AudioTrack.STATE_INITIALIZED) {
+                    mTrack.pause();
+                    mTrack.flush();
+                }
+            }
+            mDecoderThread.interrupt();
+            mWriterThread.interrupt();
+            if (mDecoderDone) {
+                sLoader.execute(this::releaseIfStopped);
+            }
+        }
+
+        /**
+         * Releases the native objects once the session is closed and its decoder thread is
+         * done, whichever of the two comes last. Blocks until the writer thread stopped.
+         */
+        private void releaseIfStopped() {
+            if (mRunning || !mDecoderDone || !mReleased.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mWriterThread.join(JOIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PcmBufferPool.Chunk chunk;
+            while ((chunk = mFilled.poll()) != null) {
+                mPool.release(chunk);
+            }
+            mCodec.release();
+            mExtractor.release();
+            synchronized (mTrackLock) {
+                mTrack.release();
+            }
+        }
+
+        long getPositionMs() {
+            synchronized (mTrackLock) {
+                return mBasePositionMs + mTrack.getPlaybackHeadPosition() * 1000L / mSampleRate;
+            }
+        }
+
+        /**
+         * Plays time of {@code bytes} of decoder output.
+         */
+        private long bytesToUs(int bytes) {
+            return bytes / (mOutputChannelCount * 2) * 1000000L / mOutputSampleRate;
+        }
+
+        private void decode() {
+            MediaCodec.BufferInfo info = mBufferInfo;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            long decodedUs = 0;
+            long reportedUs = 0;
+            long busyNs = 0;
+            try {
+                while (mRunning) {
+                    long seekUs = mSeekRequestUs.getAndSet(-1);
+                    if (seekUs >= 0) {
+                        seekInput(seekUs);
+                        mCodec.flush();
+                        inputDone = false;
+                        outputDone = false;
+                        mGeneration++;
+                    }
+                    if (outputDone) {
+                        Thread.sleep(DRAIN_POLL_MS); // wait for a seek or for close()
+                        continue;
+                    }
+
+                    long startNs = System.nanoTime();
+                    if (!inputDone) {
+                        int inputIndex = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                        if (inputIndex >= 0) {
+                            ByteBuffer input = mCodec.getInputBuffer(inputIndex);
+                            int size = readSample(input);
+                            if (size < 0) {
+                                mCodec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                inputDone = true;
+                            } else {
+                                mCodec.queueInputBuffer(inputIndex, 0, size, mSampleTimeUs, 0);
+                            }
+                        }
+                    }
+
+                    int outputIndex = mCodec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                    busyNs += System.nanoTime() - startNs;
+                    if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        MediaFormat format = mCodec.getOutputFormat();
+                        mOutputSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                        mOutputChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                        continue;
+                    }
+                    if (outputIndex < 0) {
+                        continue;
+                    }
+                    ByteBuffer output = mCodec.getOutputBuffer(outputIndex);
+                    if (output != null && info.size > 0
+                            && info.presentationTimeUs >= mSkipUntilUs) {
+                        output.position(info.offset);
+                        output.limit(info.offset + info.size);
+                        long presentationTimeUs = info.presentationTimeUs;
+                        while (output.hasRemaining()) {
+                            PcmBufferPool.Chunk chunk = mPool.acquire();
+                            int length = Math.min(chunk.data.capacity(), output.remaining());
+                            int limit = output.limit();
+                            output.limit(output.position() + length);
+                            chunk.data.put(output);
+                            output.limit(limit);
+                            chunk.data.flip();
+                            chunk.presentationTimeUs = presentationTimeUs;
+                            chunk.generation = mGeneration;
+                            chunk.sampleRate = mOutputSampleRate;
+                            chunk.channelCount = mOutputChannelCount;
+                            mFilled.put(chunk);
+                            presentationTimeUs += bytesToUs(length);
+                        }
+                        decodedUs += bytesToUs(info.size);
+                    }
+                    mCodec.releaseOutputBuffer(outputIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        PcmBufferPool.Chunk chunk = mPool.acquire();
+                        chunk.endOfStream = true;
+                        chunk.generation = mGeneration;
+                        mFilled.put(chunk);
+                        outputDone = true;
+                    }
+                    if (decodedUs - reportedUs >= STATS_INTERVAL_US && busyNs > 0) {
+                        reportedUs = decodedUs;
+                        reportDecoderStats(decodedUs * 1000f / busyNs);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // close() is stopping the session.
+            } catch (RuntimeException e) {
+                // A raw thread, whatever the codec or the buffers throw must not reach the VM.
+                Log.w(TAG, "decoder failed", e);
+                fail("decoder failed: " + e);
+            } finally {
+                mDecoderDone = true;
+                releaseIfStopped();
+            }
+        }
+
+        /**
+         * Moves the input to {@code seekUs}: to the frame playing it when there is a seek
+         * index, otherwise to the sync sample the extractor estimates is closest.
+         */
+        private void seekInput(long seekUs) {
+            if (mSeekIndex == null) {
+                mExtractor.seekTo(seekUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                return;
+            }
+            int frame = mSeekIndex.getFrameAt(seekUs);
+            // The frames before the target are decoded too, for the data it borrows from them,
+            // but not played.
+            mNextFrame = mSeekIndex.getDecodeStartFrame(frame);
+            mSkipUntilUs = mSeekIndex.getFrameTimeUs(frame);
+        }
+
+        /**
+         * Copies the next sample into {@code input} and sets {@link #mSampleTimeUs} to its time.
+         *
+         * @return the size of the sample, negative at the end of the stream
+         */
+        private int readSample(ByteBuffer input) {
+            if (mSeekIndex == null) {
+                int size = mExtractor.readSampleData(input, 0);
+                if (size >= 0) {
+                    mSampleTimeUs = mExtractor.getSampleTime();
+                    mExtractor.advance();
+                }
+                return size;
+            }
+            if (mNextFrame >= mSeekIndex.getFrameCount()) {
+                return -1;
+            }
+            int offset = mSeekIndex.getFrameOffset(mNextFrame);
+            int length = mSeekIndex.getFrameLength(mNextFrame);
+            input.clear();
+            if (length > input.remaining()) {
+                throw new IllegalStateException("frame " + mNextFrame + " of " + length
+                        + " bytes doesn't fit an input buffer of " + input.remaining());
+            }
+            mFrames.limit(offset + length).position(offset);
+            input.put(mFrames);
+            mSampleTimeUs = mSeekIndex.getFrameTimeUs(mNextFrame++);
+            return length;
+        }
+
+        private void write() {
+            try {
+                while (mRunning) {
+                    PcmBufferPool.Chunk chunk = mFilled.take();
+                    try {
+                        if (chunk.generation != mGeneration) {
+                            continue; // decoded before the latest seek
+                        }
+                        if (chunk.generation != mWrittenGeneration) {
+                            restartAt(chunk);
+                        }
+                        if (chunk.endOfStream) {
+                            drain();
+                            continue;
+                        }
+                        if ((chunk.sampleRate != mSampleRate
+                                || chunk.channelCount != mChannelCount)
+                                && !reconfigure(chunk.sampleRate, chunk.channelCount)) {
+                            return;
+                        }
+                        writeChunk(chunk);
+                        reportPosition();
+                    } finally {
+                        mPool.release(chunk);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // close() is stopping the session.
+            } catch (RuntimeException e) {
+                Log.w(TAG, "audio output failed", e);
+                fail("audio output failed: " + e);
+            }
+        }
+
+        /**
+         * Writes {@code chunk} without blocking, so that a paused track whose buffer is full
+         * doesn't hold the writer: a seek in the meantime abandons the chunk, and the first
+         * chunk after the seek flushes what the track still holds.
+         */
+        private void writeChunk(PcmBufferPool.Chunk chunk) throws InterruptedException {
+            while (chunk.data.hasRemaining() && mRunning) {
+                if (mSeekRequestUs.get() >= 0 || chunk.generation != mGeneration) {
+                    return;
+                }
+                int written = mTrack.write(chunk.data, chunk.data.remaining(),
+                        AudioTrack.WRITE_NON_BLOCKING);
+                if (written < 0) {
+                    throw new IllegalStateException("AudioTrack.write() returned " + written);
+                }
+                mFramesWritten += written / (mChannelCount * 2);
+                if (chunk.data.hasRemaining()) {
+                    Thread.sleep(WRITE_POLL_MS); // the track is full, paused or playing
+                }
+            }
+        }
+
+        /**
+         * Drops whatever the track still holds from before a seek and restarts the position
+         * clock at the first chunk decoded after it.
+         */
+        private void restartAt(PcmBufferPool.Chunk chunk) {
+            synchronized (mTrackLock) {
+                mTrack.pause();
+                mTrack.flush();
+                mBasePositionMs = chunk.presentationTimeUs / 1000;
+                mFramesWritten = 0;
+                if (mPlaying) {
+                    mTrack.play();
+                }
+            }
+            mWrittenGeneration = chunk.generation;
+        }
+
+        /**
+         * Replaces the track with one for the format the decoder now outputs. The position
+         * carries on from where the old track was.
+         *
+         * @return whether the format can be played
+         */
+        private boolean reconfigure(int sampleRate, int channelCount) {
+            AudioTrack track;
+            try {
+                track = buildTrack(sampleRate, channelCount, mGain);
+            } catch (RuntimeException e) {
+                fail("unable to play " + sampleRate + " Hz, " + channelCount + " channels: "
+                        + e.getMessage());
+                return false;
+            }
+            synchronized (mTrackLock) {
+                AudioTrack previous = mTrack;
+                mBasePositionMs += previous.getPlaybackHeadPosition() * 1000L / mSampleRate;
+                previous.pause();
+                previous.flush();
+                previous.release();
+                mTrack = track;
+                mSampleRate = sampleRate;
+                mChannelCount = channelCount;
+                mFramesWritten = 0;
+                if (mPlaying) {
+                    track.play();
+                }
+            }
+            Log.d(TAG, "output format changed to " + sampleRate + " Hz, " + channelCount
+                    + " channels");
+            return true;
+        }
+
+        /**
+         * Lets the track play out what was written, then reports completion.
+         */
+        private void drain() throws InterruptedException {
+            synchronized (mTrackLock) {
+                if (mPlaying) {
+                    mTrack.stop();
+                }
+            }
+            while (mRunning && mGeneration == mWrittenGeneration
+                    && mTrack.getPlaybackHeadPosition() < mFramesWritten) {
+                Thread.sleep(DRAIN_POLL_MS);
+            }
+            if (mRunning && mGeneration == mWrittenGeneration) {
+                mMainHandler.post(() -> onSessionCompleted(this));
+            }
+        }
+
+        private void reportPosition() {
+            long now = SystemClock.uptimeMillis();
+            if (mProgressVisible && now - mLastPositionReportMs
+                    >= MediaPlayerHolder.PLAYBACK_POSITION_REFRESH_INTERVAL_MS) {
+                mLastPositionReportMs = now;
+                int generation = mDispatcher.getPositionGeneration();
+                if (mRunning) { // not yet replaced by the session the generation belongs to
+                    mDispatcher.onPositionChanged(generation, (int) getPositionMs());
+                }
+            }
+        }
+
+        private void reportDecoderStats(float realtimeFactor) {
+            int underrunCount;
+            synchronized (mTrackLock) {
+                underrunCount = mTrack.getUnderrunCount();
+            }
+            mDispatcher.onDecoderStatsUpdated(realtimeFactor, underrunCount);
+        }
+    }
+}
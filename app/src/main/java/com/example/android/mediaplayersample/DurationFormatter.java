@@ -0,0 +1,70 @@
+package com.example.android.mediaplayersample;
+
+/**
+ * Formats track durations for display as {@code m:ss}, or {@code h:mm:ss} from one hour on.
+ * Plain Java, so it can be benchmarked off-device.
+ * <p>
+ * {@link #format(int, char[])} writes into a buffer owned by the caller and allocates nothing,
+ * so list rows can keep one buffer each and reuse it on every bind.
+ */
+final class DurationFormatter {
+
+    static final int ONE_SECOND = 1000; //milliseconds
+    static final int ONE_MINUTE = 60000;//milliseconds
+    static final int ONE_HOUR = 3600000;//milliseconds
+    // Integer.MAX_VALUE milliseconds is "596:31:23".
+    static final int MAX_LENGTH = 9;
+
+    private DurationFormatter() {
+    }
+
+    static String format(int milliseconds) {
+        char[] chars = new char[MAX_LENGTH];
+        return new String(chars, 0, format(milliseconds, chars));
+    }
+
+    /**
+     * Writes the formatted duration to the start of {@code out}, which must hold at least
+     * {@link #MAX_LENGTH} chars, and returns the number of chars written. Negative durations
+     * are shown as zero.
+     */
+    static int format(int milliseconds, char[] out) {
+        if (milliseconds < 0) {
+            milliseconds = 0;
+        }
+        int hours = milliseconds / ONE_HOUR;
+        milliseconds -= hours * ONE_HOUR;
+        int minutes = milliseconds / ONE_MINUTE;
+        milliseconds -= minutes * ONE_MINUTE;
+        int seconds = milliseconds / ONE_SECOND;
+
+        int length = 0;
+        if (hours > 0) {
+            length = writeNumber(hours, out, length);
+            out[length++] = ':';
+            length = writeTwoDigits(minutes, out, length);
+        } else {
+            length = writeNumber(minutes, out, length);
+        }
+        out[length++] = ':';
+        return writeTwoDigits(seconds, out, length);
+    }
+
+    private static int writeNumber(int value, char[] out, int offset) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private static int writeTwoDigits(int value, char[] out, int offset) {
+        out[offset] = (char) ('0' + value / 10);
+        out[offset + 1] = (char) ('0' + value % 10);
+        return offset + 2;
+    }
+}
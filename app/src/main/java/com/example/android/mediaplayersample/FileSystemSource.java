@@ -0,0 +1,330 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link LibrarySource} of the audio files below a set of directories on external storage.
+ * Tracks are named by the absolute path of their file and ordered by it.
+ * <p>
+ * A scan walks the directories in parallel on a {@link ForkJoinPool}, one task per directory,
+ * and fingerprints every audio file from the size and modification time of a single
+ * {@code lstat}, so no file is opened unless it changed. The fingerprints are then matched
+ * against the tracks already known: the persistent {@link TrackDatabase} index for the initial
+ * load, the library in memory for a rescan. Only files that were added or modified go through
+ * {@link MediaMetadataRetriever}, and a rescan that finds nothing new reports nothing.
+ * <p>
+ * Hidden files and directories are skipped, as are directories holding a {@code .nomedia}
+ * file. Symbolic links are not followed, which also keeps the walk out of cycles.
+ */
+final class FileSystemSource implements LibrarySource {
+
+    private static final String TAG = "FileSystemSource";
+    private static final String NO_MEDIA = ".nomedia";
+    private static final String[] AUDIO_EXTENSIONS =
+            {"aac", "flac", "m4a", "mp3", "oga", "ogg", "opus", "wav"};
+
+    private final List<File> mRoots;
+    private final MediaLocator mLocator;
+    private final MappedMediaCache mMediaCache;
+    private final TrackDatabase mDatabase;
+    private final LoudnessIndex mLoudnessIndex;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mCoordinator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LibraryScan");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ForkJoinPool mWalkPool = new ForkJoinPool(MetadataIndex.MAX_WORKERS);
+    private volatile boolean mCancelled;
+    // Only touched on the coordinator thread.
+    private Callback mCallback;
+    private List<TrackEntity> mLibrary;
+
+    FileSystemSource(Context context, List<File> roots) {
+        mRoots = new ArrayList<>(roots);
+        mLocator = MediaLocator.getInstance(context);
+        mMediaCache = MappedMediaCache.getInstance(context);
+        mDatabase = TrackDatabase.getInstance(context);
+        mLoudnessIndex = LoudnessIndex.getInstance(context);
+    }
+
+    /**
+     * Fingerprint of a file in the track index, changing whenever the file is rewritten.
+     */
+    static long fingerprint(long size, long mtimeSeconds) {
+        return (size << 32) ^ mtimeSeconds;
+    }
+
+    @Override
+    public void load(Callback callback) {
+        mCoordinator.execute(() -> {
+            mCallback = callback;
+            loadInBackground();
+        });
+    }
+
+    @Override
+    public void rescan() {
+        mCoordinator.execute(this::rescanInBackground);
+    }
+
+    /**
+     * Stops delivering results; a walk or extraction in progress is abandoned.
+     */
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        mCoordinator.shutdownNow();
+        mWalkPool.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void loadInBackground() {
+        List<ScannedFile> files = walk();
+        TrackDao trackDao = mDatabase.trackDao();
+        TrackIndexMerger merger = new TrackIndexMerger(trackDao.getFileTracks());
+        InOrderDelivery delivery = new InOrderDelivery(files.size(), batch -> post(() ->
+                mCallback.onTracksLoaded(batch)));
+        List<TrackEntity> library = resolve(files, merger, delivery);
+        if (library == null) {
+            return;
+        }
+        mLibrary = library;
+        store(merger);
+        post(() -> mCallback.onLoadFinished(files.size()));
+    }
+
+    private void rescanInBackground() {
+        if (mLibrary == null || mCancelled) {
+            return; // the initial load failed or hasn't run yet
+        }
+        List<ScannedFile> files = walk();
+        TrackIndexMerger merger = new TrackIndexMerger(mLibrary);
+        List<TrackEntity> library = resolve(files, merger, null);
+        if (library == null) {
+            return;
+        }
+        if (merger.getExtracted().isEmpty() && merger.finishStale().isEmpty()) {
+            return;
+        }
+        mLibrary = library;
+        store(merger);
+        post(() -> mCallback.onLibraryChanged(library));
+    }
+
+    /**
+     * Writes the outcome of a scan to the index, and drops the mappings of the files that were
+     * modified or removed.
+     */
+    private void store(TrackIndexMerger merger) {
+        final List<TrackEntity> extracted = merger.getExtracted();
+        final List<TrackEntity> stale = merger.finishStale();
+        for (TrackEntity track : stale) {
+            mMediaCache.invalidate(mLocator.getId(track.resourceName));
+        }
+        if (!extracted.isEmpty() || !stale.isEmpty()) {
+            TrackDao trackDao = mDatabase.trackDao();
+            mDatabase.runInTransaction(() -> {
+                trackDao.deleteAll(stale);
+                trackDao.insertAll(extracted);
+                mLoudnessIndex.storePending();
+            });
+            Log.d(TAG, "scan: extracted " + extracted.size() + ", dropped " + stale.size());
+        }
+    }
+
+    /**
+     * Returns the audio files below the roots, ordered by path.
+     */
+    private List<ScannedFile> walk() {
+        Collection<ScannedFile> found = new ConcurrentLinkedQueue<>();
+        List<DirectoryWalk> walks = new ArrayList<>(mRoots.size());
+        for (File root : mRoots) {
+            walks.add(new DirectoryWalk(root.getAbsolutePath(), found));
+        }
+        try {
+            mWalkPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(walks);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Thrown when cancel() shuts the pool down under the walk.
+            Log.w(TAG, "walk: abandoned", e);
+        }
+        ScannedFile[] files = found.toArray(new ScannedFile[0]);
+        Arrays.sort(files, (first, second) -> first.mPath.compareTo(second.mPath));
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Matches every scanned file with the merger, on a few workers so that the files which do
+     * need extracting are read in parallel.
+     *
+     * @param delivery gets each track as soon as it is resolved, may be {@code null}
+     * @return the tracks in the order of {@code files}, {@code null} if cancelled
+     */
+    private List<TrackEntity> resolve(List<ScannedFile> files, TrackIndexMerger merger,
+                                      InOrderDelivery delivery) {
+        final TrackEntity[] tracks = new TrackEntity[files.size()];
+        final AtomicInteger nextFile = new AtomicInteger();
+        int workers = Math.max(1, Math.min(MetadataIndex.MAX_WORKERS,
+                Math.min(files.size(), Runtime.getRuntime().availableProcessors())));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        for (int w = 0; w < workers; w++) {
+            pool.execute(() -> {
+                FileExtractor extractor = new FileExtractor();
+                int i;
+                while (!mCancelled && (i = nextFile.getAndIncrement()) < tracks.length) {
+                    ScannedFile file = files.get(i);
+                    tracks[i] = merger.resolve(file.mPath, file.mFingerprint, extractor);
+                    if (delivery != null) {
+                        delivery.complete(i, tracks[i]);
+                    }
+                }
+                extractor.release();
+            });
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            return null;
+        }
+        return mCancelled ? null : Arrays.asList(tracks);
+    }
+
+    private void post(Runnable result) {
+        mMainHandler.post(() -> {
+            if (!mCancelled) {
+                result.run();
+            }
+        });
+    }
+
+    private static boolean isAudio(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return false;
+        }
+        String extension = name.substring(dot + 1).toLowerCase(Locale.US);
+        return Arrays.binarySearch(AUDIO_EXTENSIONS, extension) >= 0;
+    }
+
+    private static final class ScannedFile {
+
+        final String mPath;
+        final long mFingerprint;
+
+        ScannedFile(String path, long fingerprint) {
+            mPath = path;
+            mFingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Lists one directory and forks a walk for each of its subdirectories.
+     */
+    private static final class DirectoryWalk extends RecursiveAction {
+
+        private final String mPath;
+        private final Collection<ScannedFile> mFound;
+
+        DirectoryWalk(String path, Collection<ScannedFile> found) {
+            mPath = path;
+            mFound = found;
+        }
+
+        @Override
+        protected void compute() {
+            String[] names = new File(mPath).list();
+            if (names == null || Arrays.asList(names).contains(NO_MEDIA)) {
+                return;
+            }
+            List<DirectoryWalk> subdirectories = new ArrayList<>();
+            for (String name : names) {
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                String path = mPath + File.separator + name;
+                StructStat stat;
+                try {
+                    stat = Os.lstat(path);
+                } catch (ErrnoException e) {
+                    continue; // removed since the listing
+                }
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    subdirectories.add(new DirectoryWalk(path, mFound));
+                } else if (OsConstants.S_ISREG(stat.st_mode) && isAudio(name)) {
+                    mFound.add(new ScannedFile(path, fingerprint(stat.st_size, stat.st_mtime)));
+                }
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Extracts with one worker's own retriever, created the first time it is needed. Files are
+     * mapped without going through the {@link MappedMediaCache}, a scan would only evict the
+     * tracks that are about to be played.
+     */
+    private final class FileExtractor implements TrackIndexMerger.MetadataExtractor {
+
+        private MediaMetadataRetriever mRetriever;
+
+        @Override
+        public TrackEntity extract(String path, long fingerprint) {
+            if (mRetriever == null) {
+                mRetriever = new MediaMetadataRetriever();
+            }
+            TrackEntity track;
+            try {
+                MappedMedia media = mLocator.map(mLocator.getId(path));
+                track = MetadataIndex.extract(mRetriever, media, path, fingerprint);
+            } catch (IOException e) {
+                Log.w(TAG, "extract: unable to map " + path, e);
+                track = new TrackEntity();
+                track.resourceName = path;
+                track.fingerprint = fingerprint;
+            }
+            if (track.title == null) {
+                String name = new File(path).getName();
+                track.title = name.substring(0, name.lastIndexOf('.'));
+            }
+            return track;
+        }
+
+        void release() {
+            if (mRetriever != null) {
+                mRetriever.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.android.mediaplayersample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Lets scan workers finish tracks in any order while the library is still delivered in order:
+ * holds back tracks that finish before earlier ones, and hands out each run of consecutive
+ * finished tracks once it is {@link #BATCH_SIZE} long or reaches the last track.
+ */
+final class InOrderDelivery {
+
+    private static final int BATCH_SIZE = 16; //tracks delivered to the UI at once
+
+    private final TrackEntity[] mTracks;
+    private final boolean[] mFinished;
+    private final Consumer<List<TrackEntity>> mSink;
+    private int mDelivered; // tracks before this index have been handed out
+
+    /**
+     * @param sink receives the batches on the worker thread that completed them
+     */
+    InOrderDelivery(int trackCount, Consumer<List<TrackEntity>> sink) {
+        mTracks = new TrackEntity[trackCount];
+        mFinished = new boolean[trackCount];
+        mSink = sink;
+    }
+
+    /**
+     * Records track {@code index}, {@code null} if it couldn't be read.
+     */
+    void complete(int index, TrackEntity track) {
+        List<TrackEntity> batch = null;
+        synchronized (this) {
+            mTracks[index] = track;
+            mFinished[index] = true;
+            int end = mDelivered;
+            while (end < mFinished.length && mFinished[end]) {
+                end++;
+            }
+            boolean last = end == mFinished.length && end > mDelivered;
+            if (end - mDelivered >= BATCH_SIZE || last) {
+                batch = new ArrayList<>(end - mDelivered);
+                for (int i = mDelivered; i < end; i++) {
+                    if (mTracks[i] != null) {
+                        batch.add(mTracks[i]);
+                        mTracks[i] = null;
+                    }
+                }
+                mDelivered = end;
+            }
+        }
+        if (batch != null && !batch.isEmpty()) {
+            mSink.accept(batch);
+        }
+    }
+}
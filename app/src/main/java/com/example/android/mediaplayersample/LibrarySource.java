@@ -0,0 +1,44 @@
+package com.example.android.mediaplayersample;
+
+import java.util.List;
+
+/**
+ * Where the tracks of the library come from. A source loads its tracks once and may then be
+ * asked to {@link #rescan()} for changes; results are always delivered on the main thread.
+ */
+interface LibrarySource {
+
+    /**
+     * Receives the library on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * Delivers the next tracks of the initial load, in library order.
+         */
+        void onTracksLoaded(List<TrackEntity> tracks);
+
+        void onLoadFinished(int trackCount);
+
+        /**
+         * Delivers the whole library, in order, after a rescan found tracks that were added,
+         * removed or modified. Not called when nothing changed.
+         */
+        void onLibraryChanged(List<TrackEntity> tracks);
+    }
+
+    /**
+     * Starts loading the library. Call at most once.
+     */
+    void load(Callback callback);
+
+    /**
+     * Looks for changes once the initial load finished. Sources that can't change ignore it.
+     */
+    void rescan();
+
+    /**
+     * Stops delivering results and releases the threads of the source.
+     */
+    void cancel();
+}
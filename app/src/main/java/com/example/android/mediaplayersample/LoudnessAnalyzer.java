@@ -0,0 +1,169 @@
+package com.example.android.mediaplayersample;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Measures the integrated loudness and the sample peak of a track in one pass over its PCM,
+ * following ITU-R BS.1770: the signal is K-weighted, its mean square is taken over 400 ms blocks
+ * overlapping by 75 %, and blocks are gated at -70 LUFS and then 10 LU below the ungated mean.
+ * <p>
+ * Memory is constant whatever the length of the track: block loudness goes into a fixed
+ * histogram of {@link #HISTOGRAM_STEP_LU} wide bins instead of a list, so the relative gate is
+ * applied per bin. Plain Java, so it can be benchmarked off-device.
+ */
+final class LoudnessAnalyzer implements PcmConsumer {
+
+    static final float ABSOLUTE_GATE_LUFS = -70f;
+    private static final float RELATIVE_GATE_LU = -10f;
+    private static final float HISTOGRAM_STEP_LU = 0.1f;
+    private static final int HISTOGRAM_BINS = 800; // -70 to +10 LUFS
+    private static final int HOPS_PER_BLOCK = 4; // 100 ms hops, 400 ms blocks
+
+    private final long[] mBinCounts = new long[HISTOGRAM_BINS];
+    private final double[] mBinEnergies = new double[HISTOGRAM_BINS];
+    private final double[] mHopEnergies = new double[HOPS_PER_BLOCK];
+
+    private int mChannelCount = 1;
+    private int mFramesPerHop = 1;
+    // Biquad coefficients of the two K-weighting stages, b0 b1 b2 a1 a2 each.
+    private final double[] mShelf = new double[5];
+    private final double[] mHighPass = new double[5];
+    // Filter state, four values per channel and stage.
+    private double[] mState = new double[0];
+
+    private int mChannel;
+    private int mFrameInHop;
+    private double mHopEnergy;
+    private int mHopCount;
+    private int mPeak;
+
+    @Override
+    public void onFormat(int sampleRate, int channelCount) {
+        mChannelCount = Math.max(1, channelCount);
+        mFramesPerHop = Math.max(1, sampleRate / 10);
+        mState = new double[mChannelCount * 8];
+        mChannel = 0;
+
+        // Coefficients for any sample rate, as derived in libebur128.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        mShelf[0] = (vh + vb * k / q + k * k) / a0;
+        mShelf[1] = 2.0 * (k * k - vh) / a0;
+        mShelf[2] = (vh - vb * k / q + k * k) / a0;
+        mShelf[3] = 2.0 * (k * k - 1.0) / a0;
+        mShelf[4] = (1.0 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        mHighPass[0] = 1.0;
+        mHighPass[1] = -2.0;
+        mHighPass[2] = 1.0;
+        mHighPass[3] = 2.0 * (k * k - 1.0) / a0;
+        mHighPass[4] = (1.0 - k / q + k * k) / a0;
+    }
+
+    @Override
+    public void onSamples(ShortBuffer samples) {
+        while (samples.hasRemaining()) {
+            int sample = samples.get();
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > mPeak) {
+                mPeak = magnitude;
+            }
+            int state = mChannel * 8;
+            double weighted = filter(mHighPass, state + 4, filter(mShelf, state, sample / 32768.0));
+            mHopEnergy += weighted * weighted;
+
+            if (++mChannel == mChannelCount) {
+                mChannel = 0;
+                if (++mFrameInHop == mFramesPerHop) {
+                    endHop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the integrated loudness in LUFS, or {@link #ABSOLUTE_GATE_LUFS} for silence.
+     */
+    float getIntegratedLoudness() {
+        if (mHopCount > 0 && mHopCount < HOPS_PER_BLOCK) {
+            // Shorter than one block: measure what there is as a single block.
+            double energy = 0;
+            for (int i = 0; i < mHopCount; i++) {
+                energy += mHopEnergies[i];
+            }
+            addBlock(energy / ((long) mHopCount * mFramesPerHop));
+            mHopCount = HOPS_PER_BLOCK;
+        }
+
+        long count = 0;
+        double energy = 0;
+        for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+            count += mBinCounts[bin];
+            energy += mBinEnergies[bin];
+        }
+        if (count == 0) {
+            return ABSOLUTE_GATE_LUFS;
+        }
+        double relativeGate = loudness(energy / count) + RELATIVE_GATE_LU;
+        int firstBin = Math.max(0, binOf(relativeGate));
+        count = 0;
+        energy = 0;
+        for (int bin = firstBin; bin < HISTOGRAM_BINS; bin++) {
+            count += mBinCounts[bin];
+            energy += mBinEnergies[bin];
+        }
+        return count == 0 ? ABSOLUTE_GATE_LUFS : (float) loudness(energy / count);
+    }
+
+    /**
+     * Returns the largest absolute sample, from 0 to 1 for full scale.
+     */
+    float getPeak() {
+        return mPeak / 32768f;
+    }
+
+    private double filter(double[] c, int state, double x) {
+        double[] z = mState;
+        double y = c[0] * x + z[state];
+        z[state] = c[1] * x - c[3] * y + z[state + 1];
+        z[state + 1] = c[2] * x - c[4] * y;
+        return y;
+    }
+
+    private void endHop() {
+        mHopEnergies[mHopCount % HOPS_PER_BLOCK] = mHopEnergy;
+        mHopEnergy = 0;
+        mFrameInHop = 0;
+        if (++mHopCount >= HOPS_PER_BLOCK) {
+            double energy = 0;
+            for (double hopEnergy : mHopEnergies) {
+                energy += hopEnergy;
+            }
+            addBlock(energy / ((long) HOPS_PER_BLOCK * mFramesPerHop));
+        }
+    }
+
+    private void addBlock(double meanSquare) {
+        double blockLoudness = loudness(meanSquare);
+        if (blockLoudness < ABSOLUTE_GATE_LUFS) {
+            return;
+        }
+        int bin = Math.min(HISTOGRAM_BINS - 1, binOf(blockLoudness));
+        mBinCounts[bin]++;
+        mBinEnergies[bin] += meanSquare;
+    }
+
+    private static int binOf(double loudness) {
+        return (int) ((loudness - ABSOLUTE_GATE_LUFS) / HISTOGRAM_STEP_LU);
+    }
+
+    private static double loudness(double meanSquare) {
+        return -0.691 + 10.0 * Math.log10(meanSquare);
+    }
+}
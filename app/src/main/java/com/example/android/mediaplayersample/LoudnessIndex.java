@@ -0,0 +1,128 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the measured loudness of every analyzed track and turns it into the playback gain that
+ * brings the track to {@link #TARGET_LUFS}, the ReplayGain 2.0 reference level.
+ * <p>
+ * Measurements are persisted in the {@link TrackDatabase} next to the track metadata and held
+ * in memory for lookups from the players, keyed like the rows by name and fingerprint, so a
+ * replaced file is never played at the gain of the old one. Loading and storing run on the
+ * analysis thread of {@link WaveformCache}, and loading also on the threads that map tracks for
+ * the players; {@link #getGain(MappedMedia)} can be called from any thread.
+ * <p>
+ * A track can be measured before the library scan indexed it, the current song is analyzed
+ * right away on the first launch. Such measurements are held until the scan inserts the row,
+ * see {@link #storePending()}.
+ */
+final class LoudnessIndex {
+
+    static final float TARGET_LUFS = -18f;
+    private static volatile LoudnessIndex sInstance;
+
+    private final MediaLocator mLocator;
+    private final TrackDatabase mDatabase;
+    private final Map<String, TrackLoudness> mLoudness = new ConcurrentHashMap<>();
+    private final Map<String, TrackLoudness> mPending = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded;
+
+    private LoudnessIndex(Context context) {
+        mLocator = MediaLocator.getInstance(context);
+        mDatabase = TrackDatabase.getInstance(context);
+    }
+
+    static LoudnessIndex getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (LoudnessIndex.class) {
+                if (sInstance == null) {
+                    sInstance = new LoudnessIndex(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private static String key(String resourceName, long fingerprint) {
+        return resourceName + "@" + Long.toHexString(fingerprint);
+    }
+
+    /**
+     * Reads the stored measurements, once. Must not be called on the main thread.
+     */
+    void loadAnalyzed() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!mLoaded) {
+                for (TrackLoudness loudness : mDatabase.trackDao().getAnalyzedLoudness()) {
+                    // A measurement put meanwhile is at least as recent.
+                    mLoudness.putIfAbsent(key(loudness.resourceName, loudness.fingerprint),
+                            loudness);
+                }
+                mLoaded = true;
+            }
+        }
+    }
+
+    boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Returns the stored measurement of this version of a track, or {@code null} if it hasn't
+     * been analyzed.
+     */
+    TrackLoudness get(String resourceName, long fingerprint) {
+        return mLoudness.get(key(resourceName, fingerprint));
+    }
+
+    /**
+     * Records a new measurement. Must not be called on the main thread.
+     */
+    void put(TrackLoudness loudness) {
+        String key = key(loudness.resourceName, loudness.fingerprint);
+        mLoudness.put(key, loudness);
+        // Held before the update, so a scan inserting the row meanwhile still stores it.
+        mPending.put(key, loudness);
+        if (store(loudness)) {
+            mPending.remove(key, loudness);
+        }
+    }
+
+    /**
+     * Stores the measurements of tracks that weren't indexed yet when they were taken. Called
+     * by the library sources in the transaction that inserts new rows.
+     */
+    void storePending() {
+        for (Map.Entry<String, TrackLoudness> pending : mPending.entrySet()) {
+            if (store(pending.getValue())) {
+                mPending.remove(pending.getKey(), pending.getValue());
+            }
+        }
+    }
+
+    private boolean store(TrackLoudness loudness) {
+        return mDatabase.trackDao().updateLoudness(loudness.resourceName, loudness.fingerprint,
+                loudness.loudnessLufs, loudness.peak) > 0;
+    }
+
+    /**
+     * Returns the linear volume to play a track at, 1 if this version of it hasn't been
+     * analyzed yet or the measurements aren't loaded, see {@link #loadAnalyzed()}.
+     * Player volumes can't go above 1, so tracks quieter than the target play unchanged.
+     */
+    float getGain(MappedMedia media) {
+        String name = mLocator.getName(media.getResourceId());
+        TrackLoudness loudness = name != null ? get(name, media.fingerprint()) : null;
+        if (loudness == null || loudness.loudnessLufs <= LoudnessAnalyzer.ABSOLUTE_GATE_LUFS) {
+            return 1f;
+        }
+        float gain = (float) Math.pow(10.0, (TARGET_LUFS - loudness.loudnessLufs) / 20.0);
+        return Math.min(1f, gain);
+    }
+}
@@ -16,54 +16,61 @@
 
 package com.example.android.mediaplayersample;
 
+import android.Manifest;
+import android.arch.lifecycle.ViewModelProviders;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.media.MediaMetadataRetriever;
 import android.media.audiofx.AudioEffect;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
-import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.lang.reflect.Field;
-import java.util.Random;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 
 /**
- * Allows playback of a single MP3 file via the UI. It contains a {@link MediaPlayerHolder}
- * which implements the {@link PlayerAdapter} interface that the activity uses to control
- * audio playback.
+ * Allows playback of a single MP3 file via the UI. The library and the player are held by a
+ * {@link PlayerModel}, which binds to the {@link PlaybackService} that owns a
+ * {@link MediaPlayerHolder}; the activity only observes the model and forwards user actions to
+ * it, so a new instance picks up where the previous one was.
  */
-public final class MainActivity extends AppCompatActivity
-                                implements OnPlay{
+public final class MainActivity extends AppCompatActivity implements OnPlay {
 
     public static final String TAG = "MainActivity";
-    private Field[] fields;
-    private static final int ONE_SECOND = 1000; //milliseconds
-    private static final int ONE_MINUTE = 60000;//milliseconds
+    private static final int REQUEST_READ_STORAGE = 1;
+    private static final int REQUEST_RECORD_AUDIO = 2;
+    private static final int ONE_SECOND = DurationFormatter.ONE_SECOND;
     private static final int SECONDS_TO_SCROLL = 10; //no of seconds to forward / rewind song
     private final static float BUTTON_SIZE_LANDSCAPE = 30.0f; //dp
     private final static float BUTTON_SIZE_PORTRAIT = 48.0f; //dp
+    private PlayerModel mModel;
     private int currentSongSelected;
-    private String [] songTitles;
-    private String [] songAuthors;
-    private String [] songDurations;
+    private TrackTable mTrackTable = new TrackTable().snapshot(); // the latest from the model
 
     private RecyclerView mRecyclerView;
     private SongsAdapter mAdapter;
     private RecyclerView.LayoutManager mLayoutManager;
 
 
-    private static SeekBar mSeekbarAudio;
-    private static PlayerAdapter mPlayerAdapter;
-    private static boolean mUserIsSeeking = false;
-    private static MediaMetadataRetriever mmr;
+    private WaveformSeekBar mSeekbarAudio;
+    private SpectrumView mSpectrumView;
+    private WaveformCache mWaveformCache;
+    private boolean mUserIsSeeking = false;
 
     public static void startEqualizer(Context context) {
         Intent starter = new Intent(AudioEffect
@@ -80,26 +87,100 @@ public final class MainActivity extends AppCompatActivity
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        mModel = ViewModelProviders.of(this).get(PlayerModel.class);
+        mWaveformCache = WaveformCache.getInstance(this);
         initializeUI();
         initializeSeekbar();
-        initializePlaybackController();
-        getSongsData();
         initializeRecView();
+        observeModel();
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        mModel.setProgressVisible(mSeekbarAudio.getVisibility() == View.VISIBLE);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
-        if (isChangingConfigurations() && mPlayerAdapter.isPlaying()) {
-            Log.d(TAG, "onStop: don't release MediaPlayer as screen is rotating & playing");
-        } else {
-            mPlayerAdapter.release();
-            Log.d(TAG, "onStop: release MediaPlayer");
+        mModel.setProgressVisible(false);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        MenuItem searchItem = menu.findItem(R.id.search);
+        final SearchView searchView = (SearchView) searchItem.getActionView();
+        String query = mModel.getSearchQuery();
+        if (!query.isEmpty()) {
+            // Recreated while searching, the results are still shown.
+            searchItem.expandActionView();
+            searchView.setQuery(query, false);
+            searchView.clearFocus();
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus(); // results are already shown, just hide the keyboard
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String query) {
+                mModel.setSearchQuery(query);
+                return true;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        switch (mModel.getPlayMode()) {
+            case PlayQueue.Mode.SEQUENTIAL:
+                menu.findItem(R.id.play_mode_sequential).setChecked(true);
+                break;
+            case PlayQueue.Mode.SHUFFLE:
+                menu.findItem(R.id.play_mode_shuffle).setChecked(true);
+                break;
+            case PlayQueue.Mode.REPEAT_ONE:
+                menu.findItem(R.id.play_mode_repeat_one).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.play_mode_repeat_all).setChecked(true);
+                break;
+        }
+        menu.findItem(R.id.visualizer).setChecked(mModel.isVisualizerShown());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.play_mode_repeat_all:
+                mModel.setPlayMode(PlayQueue.Mode.REPEAT_ALL);
+                return true;
+            case R.id.play_mode_sequential:
+                mModel.setPlayMode(PlayQueue.Mode.SEQUENTIAL);
+                return true;
+            case R.id.play_mode_shuffle:
+                mModel.setPlayMode(PlayQueue.Mode.SHUFFLE);
+                return true;
+            case R.id.play_mode_repeat_one:
+                mModel.setPlayMode(PlayQueue.Mode.REPEAT_ONE);
+                return true;
+            case R.id.visualizer:
+                toggleVisualizer();
+                return true;
+            case R.id.playback_stats:
+                showPlaybackStats();
+                return true;
+            case R.id.music_folder:
+                useMusicFolder();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
         }
     }
 
@@ -132,10 +213,12 @@ public final class MainActivity extends AppCompatActivity
         ImageButton mPlayButton = (ImageButton) findViewById(R.id.playSong);
         ImageButton mRewindButton = (ImageButton) findViewById(R.id.fast_rewind);
         ImageButton mForwardButton = (ImageButton) findViewById(R.id.fast_forward);
-        mSeekbarAudio = (SeekBar) findViewById(R.id.seekbar_audio);
+        mSeekbarAudio = findViewById(R.id.seekbar_audio);
+        mSpectrumView = findViewById(R.id.spectrum);
+        mSpectrumView.setVisibility(mModel.isVisualizerShown() ? View.VISIBLE : View.GONE);
 
         mPlayButton.setOnClickListener(
-                v -> handleMusicPlaying()
+                v -> mModel.togglePlayback()
         );
         mRewindButton.setOnClickListener(
                 v -> rewind()
@@ -145,12 +228,6 @@ public final class MainActivity extends AppCompatActivity
         );
     }
 
-    private void initializePlaybackController() {
-        MediaPlayerHolder mMediaPlayerHolder = new MediaPlayerHolder(this);
-        mMediaPlayerHolder.setPlaybackInfoListener(new PlaybackListener());
-        mPlayerAdapter = mMediaPlayerHolder;
-    }
-
     private void initializeSeekbar() {
         mSeekbarAudio.setOnSeekBarChangeListener(
                 new SeekBar.OnSeekBarChangeListener() {
@@ -169,36 +246,115 @@ public final class MainActivity extends AppCompatActivity
                     @Override
                     public void onStopTrackingTouch(SeekBar seekBar) {
                         mUserIsSeeking = false;
-                        mPlayerAdapter.seekTo(userSelectedPosition);
+                        mModel.seekTo(userSelectedPosition);
                     }
                 });
     }
 
-    private void getSongsData(){
-        fields=R.raw.class.getFields();
-        songTitles = new String[fields.length];
-        songAuthors = new String[fields.length];
-        songDurations = new String[fields.length];
-        mmr = new MediaMetadataRetriever();
+    /**
+     * Shows what {@link PlaybackTelemetry} recorded so far in this process.
+     */
+    private void showPlaybackStats() {
+        StringWriter stats = new StringWriter();
+        PrintWriter writer = new PrintWriter(stats);
+        PlaybackTelemetry.getInstance().snapshot().dump(writer);
+        writer.flush();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.playback_stats)
+                .setMessage(stats.toString())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
 
-        for (int i = 0; i < fields.length; i++) {
+    /**
+     * Shows or hides the spectrum of what is playing; capturing it needs the user to allow
+     * recording audio.
+     */
+    private void toggleVisualizer() {
+        if (mModel.isVisualizerShown()) {
+            showVisualizer(false);
+        } else if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                == PackageManager.PERMISSION_GRANTED) {
+            showVisualizer(true);
+        } else {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.RECORD_AUDIO},
+                    REQUEST_RECORD_AUDIO);
+        }
+    }
 
-            final String uriPath="android.resource://"+getPackageName()+"/raw/"+
-                    fields[i].getName();
-            final Uri uri=Uri.parse(uriPath);
-            mmr.setDataSource(getApplication(),uri);
+    private void showVisualizer(boolean shown) {
+        mModel.setVisualizerShown(shown);
+        mSpectrumView.setVisibility(shown ? View.VISIBLE : View.GONE);
+    }
 
+    /**
+     * Plays the music on external storage from now on, once the user allows reading it.
+     */
+    private void useMusicFolder() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED) {
+            onReadStorageGranted();
+        } else {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.READ_EXTERNAL_STORAGE},
+                    REQUEST_READ_STORAGE);
+        }
+    }
 
-            songTitles[i] =
-                    mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
-            songAuthors[i] =
-                    mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-            songDurations[i] =
-                    mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions,
+                                           int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (grantResults.length == 0
+                || grantResults[0] != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        if (requestCode == REQUEST_READ_STORAGE) {
+            onReadStorageGranted();
+        } else if (requestCode == REQUEST_RECORD_AUDIO) {
+            showVisualizer(true);
         }
+    }
+
+    private void onReadStorageGranted() {
+        mModel.useMusicDirectory(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC));
+    }
 
-        mmr.release(); // all done, release the object
-        transformMilliseconds();
+    /**
+     * Shows the state of the model, right away for whatever it already holds.
+     */
+    private void observeModel() {
+        mModel.getTracks().observe(this, tracks -> {
+            mTrackTable = tracks;
+            mAdapter.submitTracks(tracks);
+            showCurrentTitle();
+        });
+        // After the tracks, so a filter always applies to the table it was searched in.
+        mModel.getSearchResults().observe(this, mAdapter::setFilter);
+        mModel.getCurrentSong().observe(this, song -> {
+            currentSongSelected = song;
+            showCurrentTitle();
+            showCurrentWaveform();
+        });
+        mModel.isPlaying().observe(this, playing -> {
+            showPlaybackControls();
+            showPlaybackState(playing);
+        });
+        mModel.getAudioSession().observe(this, mSpectrumView::setAudioSessionId);
+        mModel.getDuration().observe(this, mSeekbarAudio::setMax);
+        mModel.getPosition().observe(this, position -> {
+            if (!mUserIsSeeking) {
+                mSeekbarAudio.setProgress(position, true);
+            }
+        });
+        mModel.getError().observe(this, message -> {
+            if (message != null) {
+                Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+                mModel.onErrorShown();
+            }
+        });
     }
 
     private void initializeRecView(){
@@ -206,97 +362,70 @@ public final class MainActivity extends AppCompatActivity
         mRecyclerView.setHasFixedSize(true);
         mLayoutManager = new LinearLayoutManager(this);
         mRecyclerView.setLayoutManager(mLayoutManager);
-        mAdapter = new SongsAdapter(this, songTitles,
-                songAuthors, songDurations);
+        mAdapter = new SongsAdapter(this, mTrackTable);
         mRecyclerView.setAdapter(mAdapter);
         mAdapter.setOnPlay(this);
 
     }
 
-    private void transformMilliseconds() {
-        for (int i = 0; i < songDurations.length; i++) {
-            int milliseconds = Integer.parseInt(songDurations[i]);
-            int minutes = milliseconds / ONE_MINUTE;
-            milliseconds -= minutes * ONE_MINUTE;
-            int seconds = milliseconds / ONE_SECOND;
-            StringBuilder formattedDuration = new StringBuilder(String.valueOf(minutes) + ":");
-            if (seconds < 10)
-                formattedDuration.append("0" + seconds);
-            else
-                formattedDuration.append(seconds);
-            songDurations[i] = formattedDuration.toString();
-
-        }
-    }
-
-    private void handleMusicPlaying(){
-        if (mPlayerAdapter.isPlaying()) {
-            mPlayerAdapter.pause();
+    private void showPlaybackState(boolean playing){
+        mModel.setProgressVisible(playing);
+        if (playing) {
             ((ImageButton)findViewById(R.id.playSong)).
                     setImageResource(
-                            R.drawable.ic_play_circle_outline_black_24dp);
-            ((TextView)findViewById(R.id.currentTitle)).setVisibility(View.GONE);
-            mSeekbarAudio.setVisibility(View.GONE);
-
+                            R.drawable.ic_pause_circle_outline_black_24dp);
+            ((TextView)findViewById(R.id.currentTitle)).setVisibility(View.VISIBLE);
+            mSeekbarAudio.setVisibility(View.VISIBLE);
         }
         else {
-            mPlayerAdapter.play();
             ((ImageButton)findViewById(R.id.playSong)).
                     setImageResource(
-                            R.drawable.ic_pause_circle_outline_black_24dp);
-            ((TextView)findViewById(R.id.currentTitle)).setVisibility(View.VISIBLE);
-            mSeekbarAudio.setVisibility(View.VISIBLE);
+                            R.drawable.ic_play_circle_outline_black_24dp);
+            ((TextView)findViewById(R.id.currentTitle)).setVisibility(View.GONE);
+            mSeekbarAudio.setVisibility(View.GONE);
         }
-
     }
 
-    @Override
-    public void onClick(int position) {
-        currentSongSelected = position;
-        ((TextView)findViewById(R.id.currentTitle)).setText(songTitles[position]);
+    private void showPlaybackControls(){
         ((ImageButton)findViewById(R.id.fast_rewind)).setVisibility(View.VISIBLE);
         ((ImageButton)findViewById(R.id.playSong)).setVisibility(View.VISIBLE);
         ((ImageButton)findViewById(R.id.fast_forward)).setVisibility(View.VISIBLE);
-
-        String filename = fields[position].getName();
-        int id = getResources().getIdentifier(filename, "raw", getPackageName());
-        mPlayerAdapter.reset();
-        mPlayerAdapter.release();
-        mPlayerAdapter.loadMedia(id);
-        handleMusicPlaying();
     }
 
-    private void shufflePlay(){
-        Random random = new Random();
-        int songNumber = random.nextInt(songTitles.length);
-        while(currentSongSelected == songNumber )
-            songNumber = random.nextInt(songTitles.length);
-        onClick(songNumber);
-    }
-
-    private void standardPlay(){
-        currentSongSelected++;
-        currentSongSelected%=songTitles.length; //if next song number exceeds songs amount,
-                                                //take first song
-        onClick(currentSongSelected);
+    private void showCurrentTitle(){
+        if (currentSongSelected >= 0 && currentSongSelected < mTrackTable.size()) {
+            ((TextView)findViewById(R.id.currentTitle))
+                    .setText(mTrackTable.getTitle(currentSongSelected));
+        }
     }
 
-    private void playNextSong(){
-
+    private void showCurrentWaveform(){
+        mSeekbarAudio.setWaveform(null);
+        if (currentSongSelected < 0 || currentSongSelected >= mTrackTable.size()) {
+            return;
+        }
+        final int song = currentSongSelected;
+        mWaveformCache.getWaveform(mTrackTable.getResourceName(song))
+                .thenAccept(waveform -> {
+                    if (song == currentSongSelected) {
+                        mSeekbarAudio.setWaveform(waveform);
+                    }
+                });
     }
 
-    private void playPreviousSong(){
-
+    @Override
+    public void onClick(int position) {
+        mModel.play(position);
     }
 
     private void forward(){
         int currentSeekBarPos = mSeekbarAudio.getProgress();
         int seekPosition = currentSeekBarPos+SECONDS_TO_SCROLL*ONE_SECOND;
         if (seekPosition >= mSeekbarAudio.getMax())
-            playNextSong();
+            mModel.playNextSong();
         else {
             mSeekbarAudio.setProgress(seekPosition);
-            mPlayerAdapter.seekTo(seekPosition);
+            mModel.seekTo(seekPosition);
         }
     }
 
@@ -304,35 +433,10 @@ public final class MainActivity extends AppCompatActivity
         int currentSeekBarPos = mSeekbarAudio.getProgress();
         int seekPosition = currentSeekBarPos-SECONDS_TO_SCROLL*ONE_SECOND;
         if (seekPosition <= 0)
-            playPreviousSong();
+            mModel.playPreviousSong();
         else {
             mSeekbarAudio.setProgress(seekPosition);
-            mPlayerAdapter.seekTo(seekPosition);
+            mModel.seekTo(seekPosition);
         }
     }
-
-    public static class PlaybackListener extends PlaybackInfoListener {
-
-        @Override
-        public void onDurationChanged(int duration) {
-            mSeekbarAudio.setMax(duration);
-        }
-
-        @Override
-        public void onPositionChanged(int position) {
-            if (!mUserIsSeeking) {
-                mSeekbarAudio.setProgress(position, true);
-            }
-        }
-
-        @Override
-        public void onStateChanged(@State int state) {
-            String stateToString = PlaybackInfoListener.convertStateToString(state);
-        }
-
-        @Override
-        public void onPlaybackCompleted() {
-        }
-
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+package com.example.android.mediaplayersample;
+
+import android.media.MediaDataSource;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only memory mapping of one track, a raw resource or a file. The bytes are mapped once by
+ * {@link MappedMediaCache} and shared by every consumer: each one reads through its own view
+ * from {@link #buffer()} or {@link #newDataSource()}, so nobody copies or re-opens the file.
+ */
+final class MappedMedia {
+
+    private static final int FINGERPRINT_SAMPLE_BYTES = 4096; //bytes read from each end of a track
+
+    private final int mResourceId;
+    private final MappedByteBuffer mMapping;
+    private final ByteBuffer mBuffer;
+    private final long mFingerprint;
+
+    /**
+     * Maps a raw resource, fingerprinted from its content.
+     */
+    MappedMedia(int resourceId, MappedByteBuffer mapping) {
+        mResourceId = resourceId;
+        mMapping = mapping;
+        mBuffer = mapping.asReadOnlyBuffer();
+        mFingerprint = contentFingerprint(buffer());
+    }
+
+    /**
+     * Maps a file whose fingerprint is already known from its size and modification time.
+     */
+    MappedMedia(int resourceId, MappedByteBuffer mapping, long fingerprint) {
+        mResourceId = resourceId;
+        mMapping = mapping;
+        mBuffer = mapping.asReadOnlyBuffer();
+        mFingerprint = fingerprint;
+    }
+
+    int getResourceId() {
+        return mResourceId;
+    }
+
+    int getLength() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Reads the whole mapping into physical memory, so the first reads of a player that opens
+     * it afterwards don't wait for the disk. Blocks, call it off the main thread.
+     */
+    void prefault() {
+        mMapping.load();
+    }
+
+    /**
+     * Returns an independent view of the whole resource, positioned at its start.
+     */
+    ByteBuffer buffer() {
+        return mBuffer.duplicate();
+    }
+
+    /**
+     * Returns a data source for {@link android.media.MediaPlayer},
+     * {@link android.media.MediaExtractor} or {@link android.media.MediaMetadataRetriever}
+     * that reads straight from the mapping.
+     */
+    MediaDataSource newDataSource() {
+        return new DataSource(buffer());
+    }
+
+    /**
+     * Identifies this version of the track in the persistent index. Files use the fingerprint
+     * of {@link FileSystemSource#fingerprint(long, long)}.
+     */
+    long fingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * Cheap content fingerprint: the length of the resource mixed with a CRC of its first and
+     * last {@link #FINGERPRINT_SAMPLE_BYTES} bytes, so unchanged tracks are never fully read.
+     */
+    private static long contentFingerprint(ByteBuffer view) {
+        int length = view.capacity();
+        byte[] sample = new byte[Math.min(FINGERPRINT_SAMPLE_BYTES, length)];
+        CRC32 crc = new CRC32();
+        view.get(sample);
+        crc.update(sample);
+        if (length > sample.length) {
+            view.position(Math.max(sample.length, length - FINGERPRINT_SAMPLE_BYTES));
+            int tail = view.remaining();
+            view.get(sample, 0, tail);
+            crc.update(sample, 0, tail);
+        }
+        return ((long) length << 32) ^ crc.getValue();
+    }
+
+    /**
+     * Serves reads for the media framework from a private view of the mapping. Closing it
+     * leaves the mapping alone, since other consumers may still be using it.
+     */
+    private static final class DataSource extends MediaDataSource {
+
+        private final ByteBuffer mView;
+
+        DataSource(ByteBuffer view) {
+            mView = view;
+        }
+
+        @Override
+        public synchronized int readAt(long position, byte[] buffer, int offset, int size) {
+            if (position >= mView.capacity()) {
+                return -1;
+            }
+            int length = (int) Math.min(size, mView.capacity() - position);
+            mView.position((int) position);
+            mView.get(buffer, offset, length);
+            return length;
+        }
+
+        @Override
+        public long getSize() {
+            return mView.capacity();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps tracks into memory once per process, so metadata reading, decoding and analysis all
+ * share the same pages instead of opening and reading the file again. Tracks are identified by
+ * the ids of the {@link MediaLocator}.
+ * <p>
+ * At most {@link #MAX_MAPPED} resources stay mapped; the least recently used one is dropped
+ * when another is needed. Java can't unmap a buffer explicitly, so a dropped mapping is
+ * released by the garbage collector once its last consumer lets go of it.
+ */
+final class MappedMediaCache {
+
+    private static final int MAX_MAPPED = 8;
+    private static volatile MappedMediaCache sInstance;
+
+    private final MediaLocator mLocator;
+    private final Map<Integer, MappedMedia> mMapped =
+            new LinkedHashMap<Integer, MappedMedia>(MAX_MAPPED, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, MappedMedia> eldest) {
+                    return size() > MAX_MAPPED;
+                }
+            };
+
+    private MappedMediaCache(Context context) {
+        mLocator = MediaLocator.getInstance(context);
+    }
+
+    static MappedMediaCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (MappedMediaCache.class) {
+                if (sInstance == null) {
+                    sInstance = new MappedMediaCache(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the mapping of a track, mapping it first if needed, see
+     * {@link MediaLocator#map(int)}.
+     */
+    MappedMedia get(int resourceId) throws IOException {
+        synchronized (mMapped) {
+            MappedMedia media = mMapped.get(resourceId);
+            if (media != null) {
+                return media;
+            }
+        }
+        // Map outside the lock, two threads racing on one resource just map it twice.
+        MappedMedia media = mLocator.map(resourceId);
+        synchronized (mMapped) {
+            MappedMedia raced = mMapped.get(resourceId);
+            if (raced != null) {
+                return raced;
+            }
+            mMapped.put(resourceId, media);
+        }
+        return media;
+    }
+
+    /**
+     * Returns the mapping of a track if it is already mapped, or null, without touching the
+     * disk.
+     */
+    MappedMedia peek(int resourceId) {
+        synchronized (mMapped) {
+            return mMapped.get(resourceId);
+        }
+    }
+
+    /**
+     * Drops the mapping of a track whose file was modified or removed, so the next
+     * {@link #get(int)} maps it again.
+     */
+    void invalidate(int resourceId) {
+        synchronized (mMapped) {
+            mMapped.remove(resourceId);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.TypedValue;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Translates between track names and the int ids the players work with. A track is named
+ * either after its raw resource or, when a {@link FileSystemSource} found it, by the absolute
+ * path of its file. Raw resources keep their resource id; files get negative ids, handed out the
+ * first time their path is seen and stable for the life of the process.
+ */
+final class MediaLocator {
+
+    private static volatile MediaLocator sInstance;
+
+    private final Resources mResources;
+    private final String mPackageName;
+    private final Map<String, Integer> mFileIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> mFilePaths = new ConcurrentHashMap<>();
+    private int mLastFileId; // guarded by mFileIds
+
+    private MediaLocator(Context context) {
+        Context appContext = context.getApplicationContext();
+        mResources = appContext.getResources();
+        mPackageName = appContext.getPackageName();
+    }
+
+    static MediaLocator getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (MediaLocator.class) {
+                if (sInstance == null) {
+                    sInstance = new MediaLocator(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    static boolean isFile(String name) {
+        return name.startsWith(File.separator);
+    }
+
+    /**
+     * Returns the id of a track, or 0 if there is no raw resource of that name.
+     */
+    int getId(String name) {
+        if (!isFile(name)) {
+            return mResources.getIdentifier(name, "raw", mPackageName);
+        }
+        Integer id = mFileIds.get(name);
+        if (id == null) {
+            synchronized (mFileIds) {
+                id = mFileIds.get(name);
+                if (id == null) {
+                    id = --mLastFileId;
+                    mFilePaths.put(id, name);
+                    mFileIds.put(name, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns the name of a track, or {@code null} if the id is unknown.
+     */
+    String getName(int id) {
+        if (id < 0) {
+            return mFilePaths.get(id);
+        }
+        try {
+            return mResources.getResourceEntryName(id);
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the MIME type of a track as told by the extension of its file, or {@code null} if
+     * the id or the extension is unknown. Doesn't touch the track itself, so it is cheap
+     * enough for the main thread.
+     */
+    String getMimeType(int id) {
+        String fileName;
+        if (id < 0) {
+            fileName = mFilePaths.get(id);
+        } else {
+            TypedValue value = new TypedValue();
+            try {
+                mResources.getValue(id, value, true); // the path of the raw file in the APK
+            } catch (Resources.NotFoundException e) {
+                return null;
+            }
+            fileName = value.string != null ? value.string.toString() : null;
+        }
+        int dot = fileName != null ? fileName.lastIndexOf('.') : -1;
+        if (dot < 0) {
+            return null;
+        }
+        return MimeTypeMap.getSingleton()
+                .getMimeTypeFromExtension(fileName.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    /**
+     * Maps a whole track into memory. Raw resources must be stored uncompressed in the APK, as
+     * {@link Resources#openRawResourceFd(int)} requires.
+     */
+    MappedMedia map(int id) throws IOException {
+        if (id < 0) {
+            return mapFile(id);
+        }
+        try (AssetFileDescriptor afd = mResources.openRawResourceFd(id);
+             FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+             FileChannel channel = in.getChannel()) {
+            // The mapping stays valid after the descriptor is closed.
+            return new MappedMedia(id, channel.map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength()));
+        }
+    }
+
+    private MappedMedia mapFile(int id) throws IOException {
+        String path = mFilePaths.get(id);
+        if (path == null) {
+            throw new IOException("unknown track id " + id);
+        }
+        try (FileInputStream in = new FileInputStream(path);
+             FileChannel channel = in.getChannel()) {
+            StructStat stat;
+            try {
+                stat = Os.fstat(in.getFD());
+            } catch (ErrnoException e) {
+                throw new IOException("unable to stat " + path, e);
+            }
+            // Fingerprinted like the scan did, so the index rows of the file still match.
+            return new MappedMedia(id, channel.map(FileChannel.MapMode.READ_ONLY, 0, stat.st_size),
+                    FileSystemSource.fingerprint(stat.st_size, stat.st_mtime));
+        }
+    }
+}
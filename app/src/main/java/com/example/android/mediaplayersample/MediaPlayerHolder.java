@@ -17,196 +17,775 @@
 package com.example.android.mediaplayersample;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
+import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Exposes the functionality of the {@link MediaPlayer} and implements the {@link PlayerAdapter}
  * so that {@link MainActivity} can control music playback.
+ * <p>
+ * The holder tracks the state of its {@link MediaPlayer} with the
+ * {@link PlaybackInfoListener.State} values and only moves along the transitions allowed by
+ * {@link #isLegalTransition(int, int)}, so calls that would be illegal in the current state are
+ * ignored instead of reaching the native player. The same player is reused from one track to
+ * the next with {@link MediaPlayer#reset()}, so a track change costs one prepare and no new
+ * native player.
+ * <p>
+ * In gapless mode a second {@link MediaPlayer} is prepared for the upcoming track and chained
+ * with {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}, so the platform starts it as soon as
+ * the current track ends instead of waiting for a new decoder to be built. The player it takes
+ * over from is kept as a spare for the following track.
+ * <p>
+ * Upcoming tracks are warmed up by the {@link MediaPreloader} as soon as they are known, but
+ * the next one only gets its own prepared player during the last {@link #WARM_UP_LEAD_MS} of
+ * the current track, so a second decoder isn't held for the whole track. Loading that track
+ * early, as when skipping to it, switches to its prepared player.
+ * <p>
+ * Callbacks go through a {@link PlaybackDispatcher}, so the listener gets them on the main
+ * thread even though the position is sampled on the shared ticker thread.
  */
 public final class MediaPlayerHolder implements PlayerAdapter {
 
-    public static final int PLAYBACK_POSITION_REFRESH_INTERVAL_MS = 1000;
+    public static final int PLAYBACK_POSITION_REFRESH_INTERVAL_MS = 250;
+    public static final int WARM_UP_LEAD_MS = 10000;
+    private static final int[] NO_UPCOMING = new int[0];
+
+    /**
+     * Shared by every holder and never shut down, so starting and stopping position updates
+     * doesn't create or destroy threads.
+     */
+    private static final ScheduledExecutorService sPositionScheduler =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PlaybackPosition");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     private final Context mContext;
-    private MediaPlayer mMediaPlayer;
+    private final MappedMediaCache mMediaCache;
+    private final LoudnessIndex mLoudnessIndex;
+    private final MediaPreloader mPreloader;
+    private final PlaybackTelemetry mTelemetry = PlaybackTelemetry.getInstance();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final int mAudioSessionId;
+    private volatile MediaPlayer mMediaPlayer; // also read by the position ticker
+    @PlaybackInfoListener.State
+    private volatile int mState = PlaybackInfoListener.State.IDLE;
+    private MediaPlayer mNextMediaPlayer;
+    private MediaPlayer mSpareMediaPlayer;
     private int mResourceId;
-    private PlaybackInfoListener mPlaybackInfoListener;
-    private ScheduledExecutorService mExecutor;
-    private Runnable mSeekbarPositionUpdateTask;
+    private int mNextResourceId;
+    private boolean mNextPrepared;
+    private int[] mUpcomingResourceIds = NO_UPCOMING;
+    private ScheduledFuture<?> mWarmUp;
+    private boolean mGaplessEnabled;
+    private CompletableFuture<Integer> mPendingLoad;
+    private boolean mPlayWhenPrepared;
+    private long mPrepareStart;
+    private long mCompletionTimeMs = -1; // of a track no player was chained to
+    // When the current track will end at the current rate, sampled with its position.
+    private volatile long mPredictedEndMs = -1;
+    private long mLastTransitionLatencyMs = -1;
+    private final PlaybackDispatcher mDispatcher = new PlaybackDispatcher();
+    private final Runnable mSeekbarPositionUpdateTask = this::updateProgressCallbackTask;
+    private ScheduledFuture<?> mPositionUpdates;
+    private boolean mPositionUpdatesWanted;
+    private boolean mProgressVisible = true;
 
     public MediaPlayerHolder(Context context) {
+        this(context, ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE))
+                .generateAudioSessionId());
+    }
+
+    /**
+     * Plays in the given audio session, shared with another player.
+     */
+    public MediaPlayerHolder(Context context, int audioSessionId) {
         mContext = context.getApplicationContext();
+        mMediaCache = MappedMediaCache.getInstance(mContext);
+        mLoudnessIndex = LoudnessIndex.getInstance(mContext);
+        mPreloader = MediaPreloader.getInstance(mContext);
+        mAudioSessionId = audioSessionId;
     }
 
     /**
-     * Once the {@link MediaPlayer} is released, it can't be used again, and another one has to be
-     * created. In the onStop() method of the {@link MainActivity} the {@link MediaPlayer} is
-     * released. Then in the onStart() of the {@link MainActivity} a new {@link MediaPlayer}
-     * object has to be created. That's why this method is private, and called by load(int) and
-     * not the constructor.
+     * The transitions of the holder's state machine. {@link PlaybackInfoListener.State#STOPPED}
+     * is a prepared player rewound to the start by {@link #reset()}, not the stopped state of
+     * {@link MediaPlayer}, which would have to be prepared again.
      */
-    private void initializeMediaPlayer() {
-        if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnCompletionListener(
-                    mediaPlayer ->{
-                    stopUpdatingCallbackWithPosition(true);
-                    logToUI("MediaPlayer playback completed");
-                    if (mPlaybackInfoListener != null) {
-                        mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.COMPLETED);
-                        mPlaybackInfoListener.onPlaybackCompleted();
-                    }
-                });
+    static boolean isLegalTransition(@PlaybackInfoListener.State int from,
+                                     @PlaybackInfoListener.State int to) {
+        switch (to) {
+            case PlaybackInfoListener.State.IDLE:
+                return true; // MediaPlayer#reset() is legal in every state
+            case PlaybackInfoListener.State.PREPARING:
+                return from == PlaybackInfoListener.State.IDLE;
+            case PlaybackInfoListener.State.PREPARED:
+                // Either prepared, or the prepared player of the next track took over.
+                return from != PlaybackInfoListener.State.IDLE;
+            case PlaybackInfoListener.State.PLAYING:
+                return from == PlaybackInfoListener.State.PREPARED
+                        || from == PlaybackInfoListener.State.PAUSED
+                        || from == PlaybackInfoListener.State.COMPLETED
+                        || from == PlaybackInfoListener.State.STOPPED;
+            case PlaybackInfoListener.State.PAUSED:
+            case PlaybackInfoListener.State.COMPLETED:
+                return from == PlaybackInfoListener.State.PLAYING;
+            case PlaybackInfoListener.State.STOPPED:
+                return from == PlaybackInfoListener.State.PREPARED
+                        || from == PlaybackInfoListener.State.PLAYING
+                        || from == PlaybackInfoListener.State.PAUSED
+                        || from == PlaybackInfoListener.State.COMPLETED;
+            case PlaybackInfoListener.State.ERROR:
+                return from != PlaybackInfoListener.State.IDLE;
+            default:
+                return false;
+        }
+    }
+
+    private void moveTo(@PlaybackInfoListener.State int state) {
+        if (!isLegalTransition(mState, state)) {
+            throw new IllegalStateException("Illegal transition "
+                    + PlaybackInfoListener.convertStateToString(mState) + " -> "
+                    + PlaybackInfoListener.convertStateToString(state));
+        }
+        mState = state;
+        mDispatcher.onStateChanged(state);
+    }
+
+    /**
+     * Whether the current player has media it can play, seek in and report the duration of.
+     */
+    private boolean hasPreparedMedia() {
+        return isLegalTransition(mState, PlaybackInfoListener.State.STOPPED);
+    }
+
+    /**
+     * Whether a track is being mapped or prepared, to be played once prepared if
+     * {@code mPlayWhenPrepared} is set by then.
+     */
+    private boolean isLoading() {
+        return mState == PlaybackInfoListener.State.PREPARING || mPendingLoad != null;
+    }
+
+    /**
+     * Returns the spare player if there is one, or a new one. Every player gets the same
+     * listeners, which tell the current and the next player apart by identity, and plays in
+     * the same audio session, so gapless transitions don't detach a visualizer.
+     */
+    private MediaPlayer obtainMediaPlayer() {
+        MediaPlayer mediaPlayer = mSpareMediaPlayer;
+        if (mediaPlayer != null) {
+            mSpareMediaPlayer = null;
+            return mediaPlayer;
+        }
+        mediaPlayer = new MediaPlayer();
+        mediaPlayer.setAudioSessionId(mAudioSessionId);
+        mediaPlayer.setOnPreparedListener(this::onPrepared);
+        mediaPlayer.setOnCompletionListener(this::onCompletion);
+        mediaPlayer.setOnInfoListener(this::onInfo);
+        mediaPlayer.setOnErrorListener(this::onError);
+        return mediaPlayer;
+    }
+
+    /**
+     * Resets a player that is no longer needed and keeps it as the spare, or releases it if
+     * there already is one.
+     */
+    private void recycleMediaPlayer(MediaPlayer mediaPlayer) {
+        if (mSpareMediaPlayer == null) {
+            mediaPlayer.reset();
+            mSpareMediaPlayer = mediaPlayer;
+        } else {
+            mediaPlayer.release();
+        }
+    }
+
+    private void onPrepared(MediaPlayer mediaPlayer) {
+        if (mediaPlayer == mNextMediaPlayer) {
+            if (hasPreparedMedia()) {
+                mMediaPlayer.setNextMediaPlayer(mediaPlayer);
+                mNextPrepared = true;
+                predictEnd(mMediaPlayer);
+            }
+            return;
+        }
+        if (mediaPlayer != mMediaPlayer || mState != PlaybackInfoListener.State.PREPARING) {
+            return; // prepared synchronously, or reset since
+        }
+        mTelemetry.record(PlaybackTelemetry.Timer.PREPARE, mPrepareStart);
+        moveTo(PlaybackInfoListener.State.PREPARED);
+        CompletableFuture<Integer> load = mPendingLoad;
+        mPendingLoad = null;
+        initializeProgressCallback();
+        if (mPlayWhenPrepared) {
+            play();
+        }
+        if (load != null) {
+            load.complete(mediaPlayer.getDuration());
+        }
+    }
+
+    private boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+        // Errors raised before a player got prepared are prepare failures.
+        if ((mediaPlayer == mNextMediaPlayer && !mNextPrepared)
+                || (mediaPlayer == mMediaPlayer
+                        && mState == PlaybackInfoListener.State.PREPARING)) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+        }
+        if (mediaPlayer == mNextMediaPlayer) {
+            releaseNextMediaPlayer();
+            reportError("next track failed (" + what + ", " + extra + ")", null);
+            return true;
+        }
+        if (mediaPlayer != mMediaPlayer) {
+            return true; // the spare, nothing depends on it
+        }
+        cancelWarmUp();
+        stopUpdatingCallbackWithPosition(false);
+        releaseNextMediaPlayer();
+        if (isLegalTransition(mState, PlaybackInfoListener.State.ERROR)) {
+            moveTo(PlaybackInfoListener.State.ERROR);
+        }
+        reportError("MediaPlayer error (" + what + ", " + extra + ")",
+                new IOException("MediaPlayer error " + what + ", " + extra));
+        return true;
+    }
+
+    /**
+     * Tells the listener about a failure and fails the pending load, if there is one.
+     */
+    private void reportError(String message, Exception cause) {
+        logToUI(message);
+        mDispatcher.onError(message);
+        if (cause != null && mPendingLoad != null) {
+            mPendingLoad.completeExceptionally(cause);
+            mPendingLoad = null;
+        }
+    }
+
+    private void cancelPendingLoad() {
+        if (mPendingLoad != null) {
+            mPendingLoad.cancel(false);
+            mPendingLoad = null;
         }
     }
 
+    private void onCompletion(MediaPlayer mediaPlayer) {
+        if (mediaPlayer != mMediaPlayer) {
+            return;
+        }
+        if (mNextMediaPlayer != null && mNextPrepared) {
+            // The chained player has already taken over and is playing, just promote it.
+            MediaPlayer finished = mMediaPlayer;
+            mMediaPlayer = mNextMediaPlayer;
+            mResourceId = mNextResourceId;
+            mNextMediaPlayer = null;
+            mNextPrepared = false;
+            recycleMediaPlayer(finished);
+            mUpcomingResourceIds = NO_UPCOMING; // the client names the new upcoming tracks
+            initializeProgressCallback();
+            mDispatcher.onMediaTransition(mResourceId);
+            return;
+        }
+        releaseNextMediaPlayer();
+        mCompletionTimeMs = SystemClock.elapsedRealtime();
+        mPredictedEndMs = -1;
+        stopUpdatingCallbackWithPosition(true);
+        logToUI("MediaPlayer playback completed");
+        moveTo(PlaybackInfoListener.State.COMPLETED);
+        mDispatcher.onPlaybackCompleted();
+    }
+
+    private boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT && mPredictedEndMs >= 0) {
+            // Often delivered before the finished player's onCompletion(), which can't serve
+            // as the end of the track; its predicted end can.
+            recordTransitionLatency(SystemClock.elapsedRealtime() - mPredictedEndMs);
+        }
+        return false;
+    }
+
+    /**
+     * Samples when the track of {@code mediaPlayer}, which is playing or about to, will end.
+     */
+    private void predictEnd(MediaPlayer mediaPlayer) {
+        mPredictedEndMs = SystemClock.elapsedRealtime() + mediaPlayer.getDuration()
+                - mediaPlayer.getCurrentPosition();
+    }
+
+    private void recordTransitionLatency(long latencyMs) {
+        mLastTransitionLatencyMs = latencyMs;
+        mCompletionTimeMs = -1;
+        mPredictedEndMs = -1;
+        logToUI("track transition took %d ms", latencyMs);
+    }
+
+    /**
+     * Enables chaining of the next track named with {@link #setUpcomingMedia(int...)}. Disabling
+     * it drops the player that was prepared for the next track.
+     */
+    public void setGaplessEnabled(boolean enabled) {
+        mGaplessEnabled = enabled;
+        if (!enabled) {
+            releaseNextMediaPlayer();
+        }
+    }
+
+    /**
+     * Returns the gap, in milliseconds, between the last completed track and the one that
+     * followed it, or -1 if no transition has been measured yet. A chained track is measured
+     * from the end predicted by the position of the finished one, so a gapless transition can
+     * come out a few milliseconds negative, within the accuracy of that position.
+     */
+    public long getLastTransitionLatencyMs() {
+        return mLastTransitionLatencyMs;
+    }
+
+    @PlaybackInfoListener.State
+    int getState() {
+        return mState;
+    }
+
+    @Override
     public void setPlaybackInfoListener(PlaybackInfoListener listener) {
-        mPlaybackInfoListener = listener;
+        mDispatcher.setListener(listener);
     }
 
     // Implements PlaybackControl.
     @Override
     public void loadMedia(int resourceId) {
-        mResourceId = resourceId;
-
-        initializeMediaPlayer();
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.LOAD_MEDIA);
+        try {
+            loadMediaNow(resourceId);
+        } finally {
+            mTelemetry.endSection(PlaybackTelemetry.Timer.LOAD_MEDIA, start);
+        }
+    }
 
-        AssetFileDescriptor assetFileDescriptor =
-                mContext.getResources().openRawResourceFd(mResourceId);
+    private void loadMediaNow(int resourceId) {
+        if (promoteNextMediaPlayer(resourceId)) {
+            initializeProgressCallback();
+            return;
+        }
+        unloadMedia();
+        mResourceId = resourceId;
+        MappedMedia media;
         try {
-            mMediaPlayer.setDataSource(assetFileDescriptor);
-        } catch (Exception e) {}
+            // Blocks like the prepare() below; loadMediaAsync() maps in the background.
+            media = mMediaCache.get(resourceId);
+        } catch (IOException | RuntimeException e) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+            reportError("unable to load media: " + e.getMessage(), e);
+            return;
+        }
+        if (!setDataSource(media, resourceId)) {
+            return;
+        }
 
+        moveTo(PlaybackInfoListener.State.PREPARING);
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.PREPARE);
         try {
             mMediaPlayer.prepare();
-        } catch (Exception e) {}
+        } catch (IOException | RuntimeException e) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+            moveTo(PlaybackInfoListener.State.ERROR);
+            reportError("unable to load media: " + e.getMessage(), e);
+            return;
+        } finally {
+            mTelemetry.endSection(PlaybackTelemetry.Timer.PREPARE, start);
+        }
+        moveTo(PlaybackInfoListener.State.PREPARED);
 
         initializeProgressCallback();
+    }
+
+    @Override
+    public CompletableFuture<Integer> loadMediaAsync(int resourceId, boolean playWhenPrepared) {
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.LOAD_MEDIA);
+        try {
+            return loadMediaAsyncNow(resourceId, playWhenPrepared);
+        } finally {
+            mTelemetry.endSection(PlaybackTelemetry.Timer.LOAD_MEDIA, start);
+        }
+    }
+
+    private CompletableFuture<Integer> loadMediaAsyncNow(int resourceId,
+                                                         boolean playWhenPrepared) {
+        if (promoteNextMediaPlayer(resourceId)) {
+            initializeProgressCallback();
+            if (playWhenPrepared) {
+                play();
+            }
+            return CompletableFuture.completedFuture(mMediaPlayer.getDuration());
+        }
+        unloadMedia();
+        mResourceId = resourceId;
+
+        // Completed by onPrepared(), or failed by reportError().
+        final CompletableFuture<Integer> load = new CompletableFuture<>();
+        mPendingLoad = load;
+        mPlayWhenPrepared = playWhenPrepared;
+        mPreloader.resolve(resourceId).whenComplete((media, error) -> mMainHandler.post(() -> {
+            if (mPendingLoad != load) {
+                return; // replaced or cancelled while the track was mapped
+            }
+            if (error != null) {
+                mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+                reportError("unable to load media: " + error.getMessage(),
+                        error instanceof Exception ? (Exception) error : new IOException(error));
+                return;
+            }
+            if (!setDataSource(media, resourceId)) {
+                return;
+            }
+            moveTo(PlaybackInfoListener.State.PREPARING);
+            mPrepareStart = mTelemetry.start();
+            mMediaPlayer.prepareAsync();
+        }));
+        return load;
+    }
+
+    /**
+     * Points the current player, which must be idle, at the mapped {@code resourceId}. On
+     * failure the player stays idle and the error is reported.
+     */
+    private boolean setDataSource(MappedMedia media, int resourceId) {
+        if (mMediaPlayer == null) {
+            mMediaPlayer = obtainMediaPlayer();
+        }
+        try {
+            mMediaPlayer.setDataSource(media.newDataSource());
+            applyLoudnessGain(mMediaPlayer, media);
+        } catch (IOException | RuntimeException e) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+            mMediaPlayer.reset();
+            reportError("unable to load media: " + e.getMessage(), e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops everything scheduled for the current track, before another one takes its place.
+     */
+    private void stopCurrentMedia() {
+        cancelPendingLoad();
+        cancelWarmUp();
+        mUpcomingResourceIds = NO_UPCOMING;
+        stopUpdatingCallbackWithPosition(false);
+    }
+
+    /**
+     * Drops the loaded track and everything prepared after it, leaving the current player idle
+     * for the next one.
+     */
+    private void unloadMedia() {
+        stopCurrentMedia();
+        releaseNextMediaPlayer();
+        if (mMediaPlayer != null && mState != PlaybackInfoListener.State.IDLE) {
+            mMediaPlayer.reset();
+            moveTo(PlaybackInfoListener.State.IDLE);
+        }
+    }
+
+    /**
+     * Makes the player prepared for {@code resourceId} the current one, if there is one.
+     */
+    private boolean promoteNextMediaPlayer(int resourceId) {
+        if (mNextMediaPlayer == null || !mNextPrepared || resourceId != mNextResourceId) {
+            return false;
+        }
+        MediaPlayer previous = mMediaPlayer;
+        previous.setNextMediaPlayer(null);
+        stopCurrentMedia();
+        mMediaPlayer = mNextMediaPlayer;
+        mResourceId = resourceId;
+        mNextMediaPlayer = null;
+        mNextPrepared = false;
+        recycleMediaPlayer(previous);
+        moveTo(PlaybackInfoListener.State.PREPARED);
+        return true;
+    }
+
+    @Override
+    public void setUpcomingMedia(int... resourceIds) {
+        if (mNextMediaPlayer != null
+                && (resourceIds.length == 0 || resourceIds[0] != mNextResourceId)) {
+            releaseNextMediaPlayer();
+        }
+        mUpcomingResourceIds = resourceIds.clone();
+        for (int resourceId : resourceIds) {
+            mPreloader.warmUp(resourceId);
+        }
+        scheduleWarmUp();
+    }
+
+    /**
+     * Prepares the first upcoming track once the current one is within
+     * {@link #WARM_UP_LEAD_MS} of its end. Rescheduled whenever playback starts or seeks.
+     */
+    private void scheduleWarmUp() {
+        cancelWarmUp();
+        if (!mGaplessEnabled || mUpcomingResourceIds.length == 0 || mNextMediaPlayer != null
+                || mState != PlaybackInfoListener.State.PLAYING) {
+            return;
+        }
+        final int[] upcoming = mUpcomingResourceIds;
+        int remainingMs = mMediaPlayer.getDuration() - mMediaPlayer.getCurrentPosition();
+        mWarmUp = sPositionScheduler.schedule(() -> mPreloader.resolve(upcoming[0])
+                .whenComplete((media, error) -> mMainHandler.post(() -> {
+                    if (upcoming != mUpcomingResourceIds || mNextMediaPlayer != null) {
+                        return;
+                    }
+                    mWarmUp = null;
+                    if (error != null) {
+                        mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+                        logToUI("unable to prepare next track: " + error.getMessage());
+                        return;
+                    }
+                    prepareNextMediaPlayer(media, upcoming[0]);
+                })), Math.max(0, remainingMs - WARM_UP_LEAD_MS), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelWarmUp() {
+        if (mWarmUp != null) {
+            mWarmUp.cancel(false);
+            mWarmUp = null;
+        }
+    }
+
+    private void prepareNextMediaPlayer(MappedMedia media, int resourceId) {
+        if (!hasPreparedMedia()) {
+            return;
+        }
+
+        final MediaPlayer nextMediaPlayer = obtainMediaPlayer();
+        try {
+            nextMediaPlayer.setDataSource(media.newDataSource());
+            applyLoudnessGain(nextMediaPlayer, media);
+        } catch (IOException | RuntimeException e) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.PREPARE_FAILURES);
+            recycleMediaPlayer(nextMediaPlayer);
+            logToUI("unable to prepare next track: " + e.getMessage());
+            return;
+        }
+        // Chained to the current player by onPrepared().
+        mNextMediaPlayer = nextMediaPlayer;
+        mNextResourceId = resourceId;
+        mNextPrepared = false;
+        nextMediaPlayer.prepareAsync();
+    }
+
+    /**
+     * Plays the track at the volume that normalizes its loudness, see {@link LoudnessIndex}.
+     */
+    private void applyLoudnessGain(MediaPlayer mediaPlayer, MappedMedia media) {
+        float gain = mLoudnessIndex.getGain(media);
+        mediaPlayer.setVolume(gain, gain);
+    }
 
+    private void releaseNextMediaPlayer() {
+        if (mNextMediaPlayer != null) {
+            if (mNextPrepared && mMediaPlayer != null) {
+                mMediaPlayer.setNextMediaPlayer(null);
+            }
+            recycleMediaPlayer(mNextMediaPlayer);
+            mNextMediaPlayer = null;
+            mNextPrepared = false;
+        }
     }
 
     @Override
     public void release() {
+        stopCurrentMedia();
+        releaseNextMediaPlayer();
+        if (mSpareMediaPlayer != null) {
+            mSpareMediaPlayer.release();
+            mSpareMediaPlayer = null;
+        }
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
+            moveTo(PlaybackInfoListener.State.IDLE);
         }
     }
 
     @Override
     public boolean isPlaying() {
-        if (mMediaPlayer != null) {
-            return mMediaPlayer.isPlaying();
-        }
-        return false;
+        return mState == PlaybackInfoListener.State.PLAYING;
     }
 
     @Override
     public void play() {
-        if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
+        if (isLoading()) {
+            mPlayWhenPrepared = true; // start as soon as the media is prepared
+            return;
+        }
+        if (!isLegalTransition(mState, PlaybackInfoListener.State.PLAYING)) {
+            return;
+        }
 
-            mMediaPlayer.start();
-            if (mPlaybackInfoListener != null) {
-                mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PLAYING);
-            }
-            startUpdatingCallbackWithPosition();
+        mMediaPlayer.start();
+        if (mCompletionTimeMs >= 0) {
+            // Without a chained player the next track starts only once it is played.
+            recordTransitionLatency(SystemClock.elapsedRealtime() - mCompletionTimeMs);
         }
+        predictEnd(mMediaPlayer);
+        moveTo(PlaybackInfoListener.State.PLAYING);
+        startUpdatingCallbackWithPosition();
+        scheduleWarmUp();
     }
 
+    /**
+     * Rewinds the loaded track and stops there. The media stays prepared, so playing it again
+     * needs no native work beyond the seek.
+     */
     @Override
     public void reset() {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            loadMedia(mResourceId);
-            if (mPlaybackInfoListener != null) {
-                mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.RESET);
-            }
-            stopUpdatingCallbackWithPosition(true);
+        if (isLoading()) {
+            mPlayWhenPrepared = false;
+            return;
+        }
+        if (!isLegalTransition(mState, PlaybackInfoListener.State.STOPPED)) {
+            return;
+        }
+        if (mState == PlaybackInfoListener.State.PLAYING) {
+            mMediaPlayer.pause();
         }
+        mMediaPlayer.seekTo(0);
+        cancelWarmUp();
+        stopUpdatingCallbackWithPosition(true);
+        moveTo(PlaybackInfoListener.State.STOPPED);
     }
 
     @Override
     public void pause() {
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-            mMediaPlayer.pause();
-            if (mPlaybackInfoListener != null) {
-                mPlaybackInfoListener.onStateChanged(PlaybackInfoListener.State.PAUSED);
-            }
+        if (isLoading()) {
+            mPlayWhenPrepared = false;
+            return;
         }
+        if (!isLegalTransition(mState, PlaybackInfoListener.State.PAUSED)) {
+            return;
+        }
+        mMediaPlayer.pause();
+        cancelWarmUp();
+        stopUpdatingCallbackWithPosition(false);
+        moveTo(PlaybackInfoListener.State.PAUSED);
     }
 
     @Override
     public void seekTo(int position) {
-        if (mMediaPlayer != null) {
-            logToUI(String.format("seekTo() %d ms", position));
+        if (hasPreparedMedia()) {
+            mTelemetry.increment(PlaybackTelemetry.Counter.SEEKS);
+            logToUI("seekTo() %d ms", position);
             mMediaPlayer.seekTo(position);
+            if (mState == PlaybackInfoListener.State.PLAYING) {
+                predictEnd(mMediaPlayer);
+            }
+            scheduleWarmUp();
         }
     }
 
+    @Override
+    public int getCurrentPosition() {
+        return hasPreparedMedia() ? mMediaPlayer.getCurrentPosition() : 0;
+    }
+
+    @Override
+    public int getAudioSessionId() {
+        return mAudioSessionId;
+    }
+
+    @Override
+    public void setProgressVisible(boolean visible) {
+        mProgressVisible = visible;
+        updatePositionTicker();
+    }
+
     /**
      * Syncs the mMediaPlayer position with mPlaybackProgressCallback via recurring task.
      */
     private void startUpdatingCallbackWithPosition() {
-        if (mExecutor == null) {
-            mExecutor = Executors.newSingleThreadScheduledExecutor();
-        }
-        if (mSeekbarPositionUpdateTask == null) {
-            mSeekbarPositionUpdateTask = new Runnable() {
-                @Override
-                public void run() {
-                    updateProgressCallbackTask();
-                }
-            };
-        }
-        mExecutor.scheduleAtFixedRate(
-                mSeekbarPositionUpdateTask,
-                0,
-                PLAYBACK_POSITION_REFRESH_INTERVAL_MS,
-                TimeUnit.MILLISECONDS
-        );
+        mPositionUpdatesWanted = true;
+        updatePositionTicker();
     }
 
     // Reports media playback position to mPlaybackProgressCallback.
     private void stopUpdatingCallbackWithPosition(boolean resetUIPlaybackPosition) {
-        if (mExecutor != null) {
-            mExecutor.shutdownNow();
-            mExecutor = null;
-            mSeekbarPositionUpdateTask = null;
-            if (resetUIPlaybackPosition && mPlaybackInfoListener != null) {
-                mPlaybackInfoListener.onPositionChanged(0);
-            }
+        mPositionUpdatesWanted = false;
+        updatePositionTicker();
+        if (resetUIPlaybackPosition) {
+            mDispatcher.resetPosition(0);
+        }
+    }
+
+    /**
+     * Ticks only while something is playing and the progress is on screen; otherwise the
+     * scheduled task is cancelled so the CPU isn't woken up for nothing.
+     */
+    private void updatePositionTicker() {
+        boolean shouldTick = mPositionUpdatesWanted && mProgressVisible;
+        if (shouldTick && mPositionUpdates == null) {
+            mPositionUpdates = sPositionScheduler.scheduleAtFixedRate(
+                    mSeekbarPositionUpdateTask,
+                    0,
+                    PLAYBACK_POSITION_REFRESH_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS
+            );
+        } else if (!shouldTick && mPositionUpdates != null) {
+            mPositionUpdates.cancel(false);
+            mPositionUpdates = null;
         }
     }
 
     private void updateProgressCallbackTask() {
-        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-            int currentPosition = mMediaPlayer.getCurrentPosition();
-            if (mPlaybackInfoListener != null) {
-                mPlaybackInfoListener.onPositionChanged(currentPosition);
-            }
+        // Taken first, a player replaced after this point can't report under the new one.
+        int generation = mDispatcher.getPositionGeneration();
+        MediaPlayer mediaPlayer = mMediaPlayer;
+        if (mediaPlayer != null && mState == PlaybackInfoListener.State.PLAYING) {
+            // Runs on the ticker thread, the dispatcher delivers it on the next frame.
+            int position = mediaPlayer.getCurrentPosition();
+            mPredictedEndMs = SystemClock.elapsedRealtime() + mediaPlayer.getDuration() - position;
+            mDispatcher.onPositionChanged(generation, position);
         }
     }
 
     @Override
     public void initializeProgressCallback() {
-        final int duration = mMediaPlayer.getDuration();
-        if (mPlaybackInfoListener != null) {
-            mPlaybackInfoListener.onDurationChanged(duration);
-            mPlaybackInfoListener.onPositionChanged(0);
-            logToUI(String.format("firing setPlaybackDuration(%d sec)",
-                                  TimeUnit.MILLISECONDS.toSeconds(duration)));
-            logToUI("firing setPlaybackPosition(0)");
+        if (!hasPreparedMedia()) {
+            return;
         }
+        final int duration = mMediaPlayer.getDuration();
+        mDispatcher.onDurationChanged(duration);
+        mDispatcher.resetPosition(0);
+        logToUI("firing setPlaybackDuration(%d sec)", TimeUnit.MILLISECONDS.toSeconds(duration));
+        logToUI("firing setPlaybackPosition(0)");
     }
 
     private void logToUI(String message) {
-        if (mPlaybackInfoListener != null) {
-            mPlaybackInfoListener.onLogUpdated(message);
+        if (mDispatcher.isLogEnabled()) {
+            mDispatcher.onLogUpdated(message);
+        }
+    }
+
+    /**
+     * Formats the message only if somebody reads the log. Takes a primitive rather than varargs
+     * so a disabled log doesn't even box its argument.
+     */
+    private void logToUI(String format, long value) {
+        if (mDispatcher.isLogEnabled()) {
+            mDispatcher.onLogUpdated(String.format(format, value));
         }
     }
 
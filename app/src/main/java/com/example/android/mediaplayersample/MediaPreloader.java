@@ -0,0 +1,80 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Warms up tracks that are about to be played: each one is mapped through the shared
+ * {@link MappedMediaCache} and read into memory on a low-priority thread, so opening it later
+ * doesn't touch the disk.
+ */
+final class MediaPreloader {
+
+    private static final String TAG = "MediaPreloader";
+    private static volatile MediaPreloader sInstance;
+
+    private final MappedMediaCache mMediaCache;
+    private final LoudnessIndex mLoudnessIndex;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "MediaPreloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MediaPreloader(Context context) {
+        mMediaCache = MappedMediaCache.getInstance(context);
+        mLoudnessIndex = LoudnessIndex.getInstance(context);
+    }
+
+    static MediaPreloader getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (MediaPreloader.class) {
+                if (sInstance == null) {
+                    sInstance = new MediaPreloader(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    void warmUp(int resourceId) {
+        mExecutor.execute(() -> {
+            try {
+                mMediaCache.get(resourceId).prefault();
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "warmUp: unable to map resource " + resourceId, e);
+            }
+        });
+    }
+
+    /**
+     * Maps a track on the preloader thread, behind any warm-up of it that is already queued,
+     * and loads the {@link LoudnessIndex} its gain is looked up in. The returned future
+     * completes on that thread, or fails with the cause of the failure.
+     */
+    CompletableFuture<MappedMedia> resolve(int resourceId) {
+        MappedMedia mapped = mMediaCache.peek(resourceId);
+        if (mapped != null && mLoudnessIndex.isLoaded()) {
+            return CompletableFuture.completedFuture(mapped);
+        }
+        CompletableFuture<MappedMedia> media = new CompletableFuture<>();
+        mExecutor.execute(() -> {
+            try {
+                mLoudnessIndex.loadAnalyzed();
+                media.complete(mMediaCache.get(resourceId));
+            } catch (IOException | RuntimeException e) {
+                media.completeExceptionally(e);
+            }
+        });
+        return media;
+    }
+}
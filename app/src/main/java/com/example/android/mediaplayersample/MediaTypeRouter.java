@@ -0,0 +1,194 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays every track with the gapless {@link MediaPlayerHolder}, except MP3s that it can't seek
+ * in exactly: VBR streams without a table of contents, see
+ * {@link Mp3SeekIndex#needsExactSeeking}. Those go to a {@link CodecPlayerHolder}, which seeks
+ * them through their {@link Mp3SeekIndex}. Both play in the same audio session, so effects and
+ * visualizers don't notice the switch.
+ * <p>
+ * Whether an MP3 needs that is found out in the background, when it is queued or first loaded;
+ * until then it plays with {@link MediaPlayerHolder}. Only the player of the loaded track
+ * receives the listener; the other one is released. Since {@link MediaPlayerHolder} chains
+ * tracks itself, it is only told about the upcoming tracks up to the first that needs the
+ * codec player, which then starts through {@link PlaybackInfoListener#onPlaybackCompleted()}
+ * like any track that isn't chained.
+ */
+final class MediaTypeRouter implements PlayerAdapter {
+
+    private static final String TAG = "MediaTypeRouter";
+    private static final int[] NO_UPCOMING = new int[0];
+    private static final ExecutorService sProbe = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SeekProbe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MediaLocator mLocator;
+    private final MappedMediaCache mMediaCache;
+    // Keyed by the ids of the MediaLocator, only MP3s that were probed.
+    private final Map<Integer, Boolean> mNeedsExactSeeking = new ConcurrentHashMap<>();
+    private final MediaPlayerHolder mMediaPlayerHolder;
+    private final CodecPlayerHolder mCodecPlayerHolder;
+    private final int mAudioSessionId;
+    private PlayerAdapter mActive;
+    private PlaybackInfoListener mListener;
+    private int[] mUpcomingResourceIds = NO_UPCOMING;
+
+    MediaTypeRouter(Context context) {
+        mLocator = MediaLocator.getInstance(context);
+        mMediaCache = MappedMediaCache.getInstance(context);
+        mAudioSessionId = ((AudioManager) context.getSystemService(Context.AUDIO_SERVICE))
+                .generateAudioSessionId();
+        mMediaPlayerHolder = new MediaPlayerHolder(context, mAudioSessionId);
+        mMediaPlayerHolder.setGaplessEnabled(true);
+        mCodecPlayerHolder = new CodecPlayerHolder(context, mAudioSessionId);
+        mActive = mMediaPlayerHolder;
+    }
+
+    private boolean needsCodecPlayer(int resourceId) {
+        return Boolean.TRUE.equals(mNeedsExactSeeking.get(resourceId));
+    }
+
+    /**
+     * Finds out in the background whether the MP3 {@code resourceId} needs exact seeking.
+     */
+    private void probe(final int resourceId) {
+        if (mNeedsExactSeeking.containsKey(resourceId)
+                || !CodecPlayerHolder.MIME_MP3.equals(mLocator.getMimeType(resourceId))) {
+            return;
+        }
+        sProbe.execute(() -> {
+            boolean needed;
+            try {
+                needed = Mp3SeekIndex.needsExactSeeking(mMediaCache.get(resourceId).buffer());
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "unable to probe track " + resourceId, e);
+                needed = false; // MediaPlayerHolder reports the error if it can't play it
+            }
+            mNeedsExactSeeking.put(resourceId, needed);
+        });
+    }
+
+    /**
+     * Makes the player for {@code resourceId} the active one.
+     */
+    private PlayerAdapter route(int resourceId) {
+        probe(resourceId);
+        PlayerAdapter player =
+                needsCodecPlayer(resourceId) ? mCodecPlayerHolder : mMediaPlayerHolder;
+        if (player != mActive) {
+            mActive.setPlaybackInfoListener(null); // its release isn't news to the listener
+            mActive.release();
+            mActive = player;
+            mActive.setPlaybackInfoListener(mListener);
+            forwardUpcomingMedia();
+        }
+        return player;
+    }
+
+    private void forwardUpcomingMedia() {
+        int[] upcoming = mUpcomingResourceIds;
+        if (mActive == mCodecPlayerHolder) {
+            mCodecPlayerHolder.setUpcomingMedia(upcoming);
+            return;
+        }
+        int chained = 0;
+        while (chained < upcoming.length && !needsCodecPlayer(upcoming[chained])) {
+            chained++;
+        }
+        mMediaPlayerHolder.setUpcomingMedia(Arrays.copyOf(upcoming, chained));
+        // Warms up the rest.
+        mCodecPlayerHolder.setUpcomingMedia(
+                Arrays.copyOfRange(upcoming, chained, upcoming.length));
+    }
+
+    @Override
+    public void setPlaybackInfoListener(PlaybackInfoListener listener) {
+        mListener = listener;
+        mActive.setPlaybackInfoListener(listener);
+    }
+
+    @Override
+    public void loadMedia(int resourceId) {
+        route(resourceId).loadMedia(resourceId);
+    }
+
+    @Override
+    public CompletableFuture<Integer> loadMediaAsync(int resourceId, boolean playWhenPrepared) {
+        return route(resourceId).loadMediaAsync(resourceId, playWhenPrepared);
+    }
+
+    @Override
+    public void setUpcomingMedia(int... resourceIds) {
+        mUpcomingResourceIds = resourceIds.clone();
+        for (int resourceId : resourceIds) {
+            probe(resourceId);
+        }
+        forwardUpcomingMedia();
+    }
+
+    @Override
+    public void release() {
+        mMediaPlayerHolder.release();
+        mCodecPlayerHolder.release();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mActive.isPlaying();
+    }
+
+    @Override
+    public void play() {
+        mActive.play();
+    }
+
+    @Override
+    public void reset() {
+        mActive.reset();
+    }
+
+    @Override
+    public void pause() {
+        mActive.pause();
+    }
+
+    @Override
+    public void initializeProgressCallback() {
+        mActive.initializeProgressCallback();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        mActive.seekTo(position);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mActive.getCurrentPosition();
+    }
+
+    @Override
+    public int getAudioSessionId() {
+        return mAudioSessionId;
+    }
+
+    @Override
+    public void setProgressVisible(boolean visible) {
+        mMediaPlayerHolder.setProgressVisible(visible);
+        mCodecPlayerHolder.setProgressVisible(visible);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link LibrarySource} of the tracks bundled as raw resources. Reads track metadata through
+ * the persistent {@link TrackDatabase} index. The rows of the raw resources are read with a
+ * single query, and {@link MediaMetadataRetriever} is only used for tracks that are
+ * new or whose content fingerprint changed since the last launch. Tracks are read through the
+ * shared {@link MappedMediaCache} rather than opened again.
+ * <p>
+ * Loading runs off the UI thread on a bounded pool of workers, each owning its own retriever.
+ * Tracks are delivered to the {@link Callback} on the main thread in small batches, in the order
+ * of the fields, as soon as all the tracks before them are ready too, so the list can be
+ * populated incrementally and still comes out the same on every launch. Resources can't change
+ * while the app runs, so there is nothing to rescan.
+ */
+final class MetadataIndex implements LibrarySource {
+
+    private static final String TAG = "MetadataIndex";
+    static final int MAX_WORKERS = 4;
+
+    private final MappedMediaCache mMediaCache;
+    private final TrackDatabase mDatabase;
+    private final LoudnessIndex mLoudnessIndex;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mCoordinator = Executors.newSingleThreadExecutor();
+    private final Field[] mFields;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param fields the raw resources of the library, tracks are reported in this order, leaving
+     *               out those that can't be read
+     */
+    MetadataIndex(Context context, Field[] fields) {
+        mMediaCache = MappedMediaCache.getInstance(context);
+        mDatabase = TrackDatabase.getInstance(context);
+        mLoudnessIndex = LoudnessIndex.getInstance(context);
+        mFields = fields;
+    }
+
+    @Override
+    public void load(Callback callback) {
+        mCoordinator.execute(() -> loadInBackground(mFields, callback));
+        mCoordinator.shutdown();
+    }
+
+    @Override
+    public void rescan() {
+    }
+
+    /**
+     * Stops delivering results; work already handed to the workers is dropped.
+     */
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        mCoordinator.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void loadInBackground(Field[] fields, Callback callback) {
+        final TrackDao trackDao = mDatabase.trackDao();
+        final TrackIndexMerger merger = new TrackIndexMerger(trackDao.getResourceTracks());
+        final AtomicInteger nextField = new AtomicInteger();
+        final InOrderDelivery delivery = new InOrderDelivery(fields.length,
+                batch -> deliver(batch, callback));
+        int workers = Math.max(1, Math.min(MAX_WORKERS,
+                Math.min(fields.length, Runtime.getRuntime().availableProcessors())));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        for (int w = 0; w < workers; w++) {
+            pool.execute(() -> {
+                RetrieverExtractor extractor = new RetrieverExtractor();
+                int i;
+                while (!mCancelled && (i = nextField.getAndIncrement()) < fields.length) {
+                    String resourceName = fields[i].getName();
+                    TrackEntity track = null;
+                    try {
+                        extractor.mMedia = mMediaCache.get(getResourceId(fields[i]));
+                        track = merger.resolve(resourceName, extractor.mMedia.fingerprint(),
+                                extractor);
+                    } catch (IOException e) {
+                        Log.w(TAG, "load: unable to map " + resourceName, e);
+                    }
+                    delivery.complete(i, track);
+                }
+                extractor.release();
+            });
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            return;
+        }
+        if (mCancelled) {
+            return;
+        }
+
+        final List<TrackEntity> extracted = merger.getExtracted();
+        final List<TrackEntity> stale = merger.finishStale();
+        if (!extracted.isEmpty() || !stale.isEmpty()) {
+            mDatabase.runInTransaction(() -> {
+                trackDao.deleteAll(stale);
+                trackDao.insertAll(extracted);
+                mLoudnessIndex.storePending();
+            });
+            Log.d(TAG, "load: extracted " + extracted.size() + ", dropped " + stale.size());
+        }
+        mMainHandler.post(() -> {
+            if (!mCancelled) {
+                callback.onLoadFinished(fields.length);
+            }
+        });
+    }
+
+    private void deliver(List<TrackEntity> batch, Callback callback) {
+        mMainHandler.post(() -> {
+            if (!mCancelled) {
+                callback.onTracksLoaded(batch);
+            }
+        });
+    }
+
+    /**
+     * Extracts with one worker's own retriever, created the first time it is needed.
+     */
+    private final class RetrieverExtractor implements TrackIndexMerger.MetadataExtractor {
+
+        private MediaMetadataRetriever mRetriever;
+        MappedMedia mMedia;
+
+        @Override
+        public TrackEntity extract(String resourceName, long fingerprint) {
+            if (mRetriever == null) {
+                mRetriever = new MediaMetadataRetriever();
+            }
+            return MetadataIndex.extract(mRetriever, mMedia, resourceName, fingerprint);
+        }
+
+        void release() {
+            if (mRetriever != null) {
+                mRetriever.release();
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata of one track; a track that can't be parsed is still indexed, without
+     * metadata, so it isn't parsed again on every launch.
+     */
+    static TrackEntity extract(MediaMetadataRetriever retriever, MappedMedia media,
+                               String resourceName, long fingerprint) {
+        TrackEntity track = new TrackEntity();
+        track.resourceName = resourceName;
+        track.fingerprint = fingerprint;
+
+        try {
+            retriever.setDataSource(media.newDataSource());
+            track.title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+            track.artist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+            String duration =
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            track.durationMs = duration != null ? Integer.parseInt(duration) : 0;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "extract: unable to read metadata of " + resourceName, e);
+        }
+        return track;
+    }
+
+    private static int getResourceId(Field field) {
+        try {
+            return field.getInt(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Raw resource field is not accessible", e);
+        }
+    }
+}
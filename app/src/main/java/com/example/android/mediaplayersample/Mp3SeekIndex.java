@@ -0,0 +1,367 @@
+package com.example.android.mediaplayersample;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Byte offset of every audio frame of an MPEG Layer III stream, built by walking the frame
+ * headers once. Every frame of a stream holds the same number of samples, so the frame playing
+ * at any time is found by arithmetic, and a seek can start decoding at exactly that frame
+ * however the bitrate varies. Plain Java, so it can be benchmarked off-device.
+ * <p>
+ * Frames are only accepted if they agree with the first frame on MPEG version and sample rate,
+ * and the first one only if another frame follows it right away, so that stray sync words in
+ * tags or cover art don't end up in the table. A leading Xing, Info or VBRI header frame
+ * carries no audio and is left out.
+ */
+final class Mp3SeekIndex {
+
+    /**
+     * A Layer III frame may borrow up to this many bytes of main data from the frames before it,
+     * the bit reservoir.
+     */
+    private static final int MAX_RESERVOIR_BYTES = 511;
+    private static final int HEADER_BYTES = 4;
+    // The header, a CRC and the largest side info: what a frame holds besides main data.
+    private static final int MAX_FRAME_OVERHEAD_BYTES = HEADER_BYTES + 2 + 32;
+    private static final int ID3V2_HEADER_BYTES = 10;
+    private static final int XING_TOC_FLAG = 0x4;
+    private static final int VBR_PROBE_FRAMES = 64;
+    private static final int[] BITRATES_MPEG1_KBPS =
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int[] BITRATES_MPEG2_KBPS =
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+    private static final int[] SAMPLE_RATES_MPEG1 = {44100, 48000, 32000};
+
+    private final int mSampleRate;
+    private final int mSamplesPerFrame;
+    private final int[] mOffsets; // frame i spans [mOffsets[i], mOffsets[i + 1])
+    private final int mFrameCount;
+
+    Mp3SeekIndex(int sampleRate, int samplesPerFrame, int[] offsets) {
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+        mOffsets = offsets;
+        mFrameCount = offsets.length - 1;
+    }
+
+    /**
+     * Walks the frames of {@code media} from its current position. Offsets are counted from
+     * the start of the buffer.
+     *
+     * @return the index, or {@code null} if {@code media} isn't an MP3 stream
+     */
+    static Mp3SeekIndex build(ByteBuffer media) {
+        int position = media.position();
+        media = media.duplicate().order(ByteOrder.BIG_ENDIAN);
+        media.position(position);
+        int length = media.limit();
+        int offset = skipId3v2(media, media.position());
+        int first = findFirstFrame(media, offset);
+        if (first < 0) {
+            return null;
+        }
+        int lock = media.getInt(first);
+        int sampleRate = sampleRate(lock);
+        int samplesPerFrame = isMpeg1(lock) ? 1152 : 576;
+
+        int[] offsets = new int[Math.max(16, (length - first) / 400)];
+        int count = 0;
+        offset = first;
+        if (isVbrHeaderFrame(media, first)) {
+            offset += frameLength(lock);
+        }
+        while (offset + HEADER_BYTES <= length) {
+            int header = media.getInt(offset);
+            int frameLength = matches(header, lock) ? frameLength(header) : 0;
+            if (frameLength == 0) {
+                offset = resync(media, offset + 1, lock);
+                if (offset < 0) {
+                    break;
+                }
+                continue;
+            }
+            if (offset + frameLength > length) {
+                break; // truncated last frame
+            }
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = offset;
+            offset += frameLength;
+        }
+        if (count == 0) {
+            return null;
+        }
+        offsets[count] = offsets[count - 1] + frameLength(media.getInt(offsets[count - 1]));
+        return new Mp3SeekIndex(sampleRate, samplesPerFrame, Arrays.copyOf(offsets, count + 1));
+    }
+
+    /**
+     * Whether a player without this index would have to guess where a time is in
+     * {@code media}: the bitrate varies and no Xing table of contents or VBRI header says where
+     * the frames are. A constant bitrate stream is seeked by arithmetic. Only the first
+     * {@link #VBR_PROBE_FRAMES} frames are read, so this is cheap next to {@link #build}.
+     */
+    static boolean needsExactSeeking(ByteBuffer media) {
+        int position = media.position();
+        media = media.duplicate().order(ByteOrder.BIG_ENDIAN);
+        media.position(position);
+        int length = media.limit();
+        int first = findFirstFrame(media, skipId3v2(media, position));
+        if (first < 0) {
+            return false;
+        }
+        int lock = media.getInt(first);
+        int offset = first;
+        if (isVbrHeaderFrame(media, first)) {
+            if (hasSeekTable(media, first)) {
+                return false;
+            }
+            offset += frameLength(lock);
+        }
+        int bitrate = -1;
+        for (int frames = 0; frames < VBR_PROBE_FRAMES && offset + HEADER_BYTES <= length;
+                frames++) {
+            int header = media.getInt(offset);
+            int frameLength = matches(header, lock) ? frameLength(header) : 0;
+            if (frameLength == 0) {
+                offset = resync(media, offset + 1, lock);
+                if (offset < 0) {
+                    break;
+                }
+                continue;
+            }
+            int frameBitrate = header >>> 12 & 0xf;
+            if (bitrate >= 0 && frameBitrate != bitrate) {
+                return true;
+            }
+            bitrate = frameBitrate;
+            offset += frameLength;
+        }
+        return false;
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getDurationUs() {
+        return getFrameTimeUs(mFrameCount);
+    }
+
+    /**
+     * Returns the frame that is playing {@code timeUs} into the stream, clamped to the frames
+     * there are.
+     */
+    int getFrameAt(long timeUs) {
+        long frame = timeUs * mSampleRate / (mSamplesPerFrame * 1000000L);
+        return (int) Math.max(0, Math.min(mFrameCount - 1, frame));
+    }
+
+    long getFrameTimeUs(int frame) {
+        return frame * (long) mSamplesPerFrame * 1000000L / mSampleRate;
+    }
+
+    int getFrameOffset(int frame) {
+        return mOffsets[frame];
+    }
+
+    int getFrameLength(int frame) {
+        return mOffsets[frame + 1] - mOffsets[frame];
+    }
+
+    /**
+     * Returns the frame to start decoding at so that {@code frame} decodes cleanly: far enough
+     * back for the frames in between to hold the {@link #MAX_RESERVOIR_BYTES} of main data it
+     * may borrow. At low bitrates that takes several frames, at high ones a single frame.
+     */
+    int getDecodeStartFrame(int frame) {
+        int reservoirBytes = 0;
+        while (frame > 0 && reservoirBytes < MAX_RESERVOIR_BYTES) {
+            frame--;
+            reservoirBytes += Math.max(0, getFrameLength(frame) - MAX_FRAME_OVERHEAD_BYTES);
+        }
+        return frame;
+    }
+
+    /**
+     * Packs the offsets for storage: each is stored as the distance from the previous one, in
+     * 7-bit groups, so a typical frame takes two bytes.
+     */
+    byte[] encodeOffsets() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mOffsets.length * 2);
+        int previous = 0;
+        for (int offset : mOffsets) {
+            int delta = offset - previous;
+            while ((delta & ~0x7f) != 0) {
+                out.write(delta & 0x7f | 0x80);
+                delta >>>= 7;
+            }
+            out.write(delta);
+            previous = offset;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Restores an index stored with {@link #encodeOffsets()}.
+     */
+    static Mp3SeekIndex decode(int sampleRate, int samplesPerFrame, byte[] encodedOffsets) {
+        int[] offsets = new int[encodedOffsets.length / 2 + 1];
+        int count = 0;
+        int previous = 0;
+        for (int i = 0; i < encodedOffsets.length; ) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encodedOffsets[i++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            previous += delta;
+            offsets[count++] = previous;
+        }
+        return new Mp3SeekIndex(sampleRate, samplesPerFrame, Arrays.copyOf(offsets, count));
+    }
+
+    private static int skipId3v2(ByteBuffer media, int offset) {
+        while (offset + ID3V2_HEADER_BYTES <= media.limit()
+                && media.get(offset) == 'I' && media.get(offset + 1) == 'D'
+                && media.get(offset + 2) == '3') {
+            // The size is stored in four 7-bit bytes and excludes the header and footer.
+            int size = (media.get(offset + 6) & 0x7f) << 21 | (media.get(offset + 7) & 0x7f) << 14
+                    | (media.get(offset + 8) & 0x7f) << 7 | (media.get(offset + 9) & 0x7f);
+            boolean footer = (media.get(offset + 5) & 0x10) != 0;
+            offset += ID3V2_HEADER_BYTES + size + (footer ? ID3V2_HEADER_BYTES : 0);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the offset of the first frame that is followed by a frame of the same stream.
+     */
+    private static int findFirstFrame(ByteBuffer media, int offset) {
+        for (; offset + HEADER_BYTES <= media.limit(); offset++) {
+            int header = media.getInt(offset);
+            int frameLength = frameLength(header);
+            if (frameLength == 0) {
+                continue;
+            }
+            int next = offset + frameLength;
+            if (next + HEADER_BYTES <= media.limit() && matches(media.getInt(next), header)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static int resync(ByteBuffer media, int offset, int lock) {
+        for (; offset + HEADER_BYTES <= media.limit(); offset++) {
+            if (matches(media.getInt(offset), lock)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isVbrHeaderFrame(ByteBuffer media, int offset) {
+        int header = media.getInt(offset);
+        boolean mono = (header >>> 6 & 3) == 3;
+        int sideInfoBytes = isMpeg1(header) ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        return hasTag(media, offset + HEADER_BYTES + sideInfoBytes, "Xing")
+                || hasTag(media, offset + HEADER_BYTES + sideInfoBytes, "Info")
+                || hasTag(media, offset + HEADER_BYTES + 32, "VBRI");
+    }
+
+    /**
+     * Whether the header frame at {@code offset} maps times to byte offsets: a VBRI header
+     * always does, a Xing or Info header when its flags say it holds a table of contents.
+     */
+    private static boolean hasSeekTable(ByteBuffer media, int offset) {
+        if (hasTag(media, offset + HEADER_BYTES + 32, "VBRI")) {
+            return true;
+        }
+        int header = media.getInt(offset);
+        boolean mono = (header >>> 6 & 3) == 3;
+        int flagsOffset = offset + HEADER_BYTES
+                + (isMpeg1(header) ? (mono ? 17 : 32) : (mono ? 9 : 17)) + 4;
+        return flagsOffset + 4 <= media.limit()
+                && (media.getInt(flagsOffset) & XING_TOC_FLAG) != 0;
+    }
+
+    private static boolean hasTag(ByteBuffer media, int offset, String tag) {
+        if (offset + tag.length() > media.limit()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (media.get(offset + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@code header} is a Layer III frame header of the same stream as {@code lock}.
+     */
+    private static boolean matches(int header, int lock) {
+        // Sync word, version, layer and sample rate.
+        return (header & 0xfffe0c00) == (lock & 0xfffe0c00) && frameLength(header) > 0;
+    }
+
+    /**
+     * Returns the length in bytes of the frame with {@code header}, or 0 if it isn't a valid
+     * Layer III frame header.
+     */
+    private static int frameLength(int header) {
+        if ((header & 0xffe00000) != 0xffe00000 // sync word
+                || (header >>> 19 & 3) == 1 // reserved version
+                || (header >>> 17 & 3) != 1) { // not Layer III
+            return 0;
+        }
+        int bitrateIndex = header >>> 12 & 0xf;
+        int sampleRate = sampleRate(header);
+        if (bitrateIndex == 0 || bitrateIndex == 0xf || sampleRate == 0) {
+            return 0; // free format or invalid
+        }
+        int padding = header >>> 9 & 1;
+        if (isMpeg1(header)) {
+            return 144000 * BITRATES_MPEG1_KBPS[bitrateIndex] / sampleRate + padding;
+        }
+        return 72000 * BITRATES_MPEG2_KBPS[bitrateIndex] / sampleRate + padding;
+    }
+
+    private static boolean isMpeg1(int header) {
+        return (header >>> 19 & 3) == 3;
+    }
+
+    private static int sampleRate(int header) {
+        int index = header >>> 10 & 3;
+        if (index == 3) {
+            return 0;
+        }
+        switch (header >>> 19 & 3) {
+            case 3:
+                return SAMPLE_RATES_MPEG1[index];
+            case 2:
+                return SAMPLE_RATES_MPEG1[index] / 2; // MPEG-2
+            default:
+                return SAMPLE_RATES_MPEG1[index] / 4; // MPEG-2.5
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.mediaplayersample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of reusable direct buffers for decoded PCM. All buffers are allocated up front;
+ * {@link #acquire()} blocks until one is handed back with {@link #release(Chunk)}, which bounds
+ * the memory used by decoding and keeps steady-state playback free of allocations.
+ */
+final class PcmBufferPool {
+
+    /**
+     * One pooled buffer plus the bookkeeping that travels with it from decoder to track.
+     */
+    static final class Chunk {
+
+        final ByteBuffer data;
+        long presentationTimeUs;
+        int generation;
+        boolean endOfStream;
+        int sampleRate; // of the PCM in data
+        int channelCount;
+
+        Chunk(int capacity) {
+            data = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private final ArrayBlockingQueue<Chunk> mFree;
+
+    PcmBufferPool(int count, int capacity) {
+        mFree = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            mFree.add(new Chunk(capacity));
+        }
+    }
+
+    Chunk acquire() throws InterruptedException {
+        return mFree.take();
+    }
+
+    void release(Chunk chunk) {
+        chunk.data.clear();
+        chunk.endOfStream = false;
+        mFree.offer(chunk);
+    }
+}
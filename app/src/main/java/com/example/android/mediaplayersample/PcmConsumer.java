@@ -0,0 +1,20 @@
+package com.example.android.mediaplayersample;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Receives the 16-bit PCM of a track decoded by {@link TrackDecoder}, in order, one codec
+ * output buffer at a time.
+ */
+interface PcmConsumer {
+
+    /**
+     * Called before the first samples, and again if the decoder changes its output format.
+     */
+    void onFormat(int sampleRate, int channelCount);
+
+    /**
+     * Interleaved samples; the buffer is only valid during the call.
+     */
+    void onSamples(ShortBuffer samples);
+}
@@ -0,0 +1,61 @@
+package com.example.android.mediaplayersample;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Reduces decoded PCM to one peak per fixed interval, the largest absolute sample over all
+ * channels, scaled to an unsigned byte. Plain Java, so it can be benchmarked off-device.
+ */
+final class PeakDownsampler implements PcmConsumer {
+
+    private final int mIntervalMs;
+    private int mSamplesPerPeak = 1;
+    private int mSampleCount;
+    private int mMax;
+    private byte[] mPeaks = new byte[256];
+    private int mPeakCount;
+
+    PeakDownsampler(int intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    @Override
+    public void onFormat(int sampleRate, int channelCount) {
+        long samplesPerPeak = (long) sampleRate * channelCount * mIntervalMs / 1000;
+        mSamplesPerPeak = (int) Math.max(1, samplesPerPeak);
+    }
+
+    @Override
+    public void onSamples(ShortBuffer samples) {
+        while (samples.hasRemaining()) {
+            int sample = samples.get();
+            int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > mMax) {
+                mMax = magnitude;
+            }
+            if (++mSampleCount == mSamplesPerPeak) {
+                emit();
+            }
+        }
+    }
+
+    /**
+     * Returns the peaks, including a last partial interval, as unsigned bytes.
+     */
+    byte[] finish() {
+        if (mSampleCount > 0) {
+            emit();
+        }
+        return Arrays.copyOf(mPeaks, mPeakCount);
+    }
+
+    private void emit() {
+        if (mPeakCount == mPeaks.length) {
+            mPeaks = Arrays.copyOf(mPeaks, mPeakCount * 2);
+        }
+        mPeaks[mPeakCount++] = (byte) Math.min(255, mMax >> 7);
+        mMax = 0;
+        mSampleCount = 0;
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.android.mediaplayersample;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Decides the order tracks are played in. Tracks are row indexes of the {@link TrackTable};
+ * the sequential modes walk them in order and {@link Mode#SHUFFLE} hands the walk to a
+ * {@link ShuffleEngine}, so the tracks ahead of the current one are known at any time. Plain
+ * Java, so it can be benchmarked off-device.
+ */
+final class PlayQueue {
+
+    @IntDef({Mode.SEQUENTIAL, Mode.SHUFFLE, Mode.REPEAT_ONE, Mode.REPEAT_ALL})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Mode {
+
+        int SEQUENTIAL = 0; // stops after the last track
+        int SHUFFLE = 1; // every track once in random order, then a new order
+        int REPEAT_ONE = 2; // the current track again when it ends, skipping moves on
+        int REPEAT_ALL = 3;
+    }
+
+    static final int NO_TRACK = -1;
+
+    private final ShuffleEngine mShuffle;
+    @Mode
+    private int mMode = Mode.REPEAT_ALL;
+    private int mTrackCount;
+    private int mCurrent;
+
+    PlayQueue(ShuffleEngine shuffle) {
+        mShuffle = shuffle;
+    }
+
+    @Mode
+    int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Switches the mode, keeping the current track. Entering shuffle starts a new cycle with the
+     * current track first.
+     */
+    void setMode(@Mode int mode) {
+        if (mode == mMode) {
+            return;
+        }
+        int current = getCurrent();
+        mMode = mode;
+        setCurrent(current);
+    }
+
+    ShuffleEngine getShuffle() {
+        return mShuffle;
+    }
+
+    /**
+     * Grows the queue to {@code trackCount} tracks as the library is loaded.
+     */
+    void setTrackCount(int trackCount) {
+        if (trackCount > mTrackCount) {
+            mTrackCount = trackCount;
+            mShuffle.setTrackCount(trackCount);
+        }
+    }
+
+    /**
+     * Replaces the tracks after the library changed; {@code current} is the row the current
+     * track has now, or {@link #NO_TRACK} if it was removed.
+     */
+    void resetTracks(int trackCount, int current) {
+        mTrackCount = trackCount;
+        mCurrent = current >= 0 && current < trackCount ? current : 0;
+        mShuffle.resetTracks(trackCount, mCurrent);
+    }
+
+    int getTrackCount() {
+        return mTrackCount;
+    }
+
+    int getCurrent() {
+        if (mTrackCount == 0) {
+            return NO_TRACK;
+        }
+        return mMode == Mode.SHUFFLE ? mShuffle.getCurrent() : mCurrent;
+    }
+
+    /**
+     * Makes {@code track} the current one, as when the user picks it.
+     */
+    void setCurrent(int track) {
+        if (track < 0 || track >= mTrackCount) {
+            return;
+        }
+        mCurrent = track;
+        if (mMode == Mode.SHUFFLE) {
+            mShuffle.setCurrent(track);
+        }
+    }
+
+    /**
+     * Returns the track {@code ahead} places after the current one, without moving, or
+     * {@link #NO_TRACK} if there is none or it isn't decided yet.
+     */
+    int peekNext(int ahead) {
+        if (mTrackCount == 0) {
+            return NO_TRACK;
+        }
+        switch (mMode) {
+            case Mode.SHUFFLE:
+                return mShuffle.peekNext(ahead);
+            case Mode.REPEAT_ONE:
+                return mCurrent;
+            case Mode.SEQUENTIAL:
+                return mCurrent + ahead < mTrackCount ? mCurrent + ahead : NO_TRACK;
+            default:
+                return (mCurrent + ahead) % mTrackCount;
+        }
+    }
+
+    /**
+     * Moves on from a track that played to its end and returns the next one, the track
+     * {@link #peekNext(int)} names. Returns {@link #NO_TRACK} and stays put at the end of a
+     * sequential queue.
+     */
+    int advance() {
+        int track = mMode == Mode.SHUFFLE ? mShuffle.moveToNext() : peekNext(1);
+        if (track != NO_TRACK) {
+            mCurrent = track;
+        }
+        return track;
+    }
+
+    /**
+     * Moves to the next track as the user skips to it and returns it. Unlike {@link #advance()}
+     * this leaves a repeated track for the one after it.
+     */
+    int moveToNext() {
+        if (mMode != Mode.REPEAT_ONE) {
+            return advance();
+        }
+        if (mTrackCount == 0) {
+            return NO_TRACK;
+        }
+        mCurrent = (mCurrent + 1) % mTrackCount;
+        return mCurrent;
+    }
+
+    int moveToPrevious() {
+        if (mTrackCount == 0) {
+            return NO_TRACK;
+        }
+        int track;
+        switch (mMode) {
+            case Mode.SHUFFLE:
+                track = mShuffle.moveToPrevious();
+                break;
+            case Mode.SEQUENTIAL:
+                track = mCurrent > 0 ? mCurrent - 1 : NO_TRACK;
+                break;
+            default:
+                track = (mCurrent + mTrackCount - 1) % mTrackCount;
+                break;
+        }
+        if (track != NO_TRACK) {
+            mCurrent = track;
+        }
+        return track;
+    }
+}
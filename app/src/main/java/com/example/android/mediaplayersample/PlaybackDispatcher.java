@@ -0,0 +1,178 @@
+package com.example.android.mediaplayersample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers a player's {@link PlaybackInfoListener} callbacks on the main thread, whichever
+ * thread reports them. Events raised on the main thread are delivered right away, the others
+ * are posted to the main looper.
+ * <p>
+ * Position updates are coalesced: each one only replaces the pending position, and the latest
+ * is delivered once per frame, so a busy decoder can't flood the UI with seek bar updates.
+ * {@link #resetPosition(int)} starts a new generation of positions; one sampled on another
+ * thread under an older generation, say of the previous track, can't replace it.
+ */
+final class PlaybackDispatcher extends PlaybackInfoListener {
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mPositionScheduled = new AtomicBoolean();
+    private final Choreographer.FrameCallback mDeliverPosition = this::deliverPosition;
+    private volatile PlaybackInfoListener mListener;
+    private final AtomicInteger mPositionGeneration = new AtomicInteger();
+    // The generation in the upper half, the position in the lower one.
+    private final AtomicLong mPendingPosition = new AtomicLong();
+    private Choreographer mChoreographer;
+
+    void setListener(PlaybackInfoListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Log messages should only be built while this returns {@code true}, otherwise nobody reads
+     * them.
+     */
+    @Override
+    boolean isLogEnabled() {
+        PlaybackInfoListener listener = mListener;
+        return listener != null && listener.isLogEnabled();
+    }
+
+    @Override
+    void onLogUpdated(String formattedMessage) {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onLogUpdated(formattedMessage);
+            }
+        });
+    }
+
+    @Override
+    void onDurationChanged(int duration) {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onDurationChanged(duration);
+            }
+        });
+    }
+
+    @Override
+    void onPositionChanged(int position) {
+        onPositionChanged(mPositionGeneration.get(), position);
+    }
+
+    /**
+     * Reports a position sampled after {@link #getPositionGeneration()} returned
+     * {@code generation}. It is dropped if the position was reset since.
+     */
+    void onPositionChanged(int generation, int position) {
+        long pending = (long) generation << 32 | (position & 0xffffffffL);
+        mPendingPosition.accumulateAndGet(pending,
+                (current, next) -> generationOf(current) - generationOf(next) > 0 ? current : next);
+        if (mPositionScheduled.compareAndSet(false, true)) {
+            dispatch(() -> getChoreographer().postFrameCallback(mDeliverPosition));
+        }
+    }
+
+    /**
+     * Reports a position that replaces every one sampled before, for a new track or a rewind.
+     */
+    void resetPosition(int position) {
+        onPositionChanged(mPositionGeneration.incrementAndGet(), position);
+    }
+
+    /**
+     * Returns the generation to sample a position under, before reading it from the player.
+     */
+    int getPositionGeneration() {
+        return mPositionGeneration.get();
+    }
+
+    private static int generationOf(long pending) {
+        return (int) (pending >>> 32);
+    }
+
+    @Override
+    void onStateChanged(@State int state) {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onStateChanged(state);
+            }
+        });
+    }
+
+    @Override
+    void onPlaybackCompleted() {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onPlaybackCompleted();
+            }
+        });
+    }
+
+    @Override
+    void onMediaTransition(int resourceId) {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onMediaTransition(resourceId);
+            }
+        });
+    }
+
+    @Override
+    void onError(String message) {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onError(message);
+            }
+        });
+    }
+
+    @Override
+    void onDecoderStatsUpdated(float realtimeFactor, int underrunCount) {
+        dispatch(() -> {
+            PlaybackInfoListener listener = mListener;
+            if (listener != null) {
+                listener.onDecoderStatsUpdated(realtimeFactor, underrunCount);
+            }
+        });
+    }
+
+    private void dispatch(Runnable event) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            event.run();
+        } else {
+            mMainHandler.post(event);
+        }
+    }
+
+    /**
+     * Main thread only, {@link Choreographer#getInstance()} belongs to the calling thread.
+     */
+    private Choreographer getChoreographer() {
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        return mChoreographer;
+    }
+
+    private void deliverPosition(long frameTimeNanos) {
+        mPositionScheduled.set(false);
+        long pending = mPendingPosition.get();
+        PlaybackInfoListener listener = mListener;
+        if (listener != null && generationOf(pending) == mPositionGeneration.get()) {
+            listener.onPositionChanged((int) pending);
+        }
+    }
+}
@@ -23,11 +23,13 @@ import java.lang.annotation.RetentionPolicy;
 
 /**
  * Allows {@link MediaPlayerHolder} to report media playback duration and progress updates to
- * the {@link MainActivity}.
+ * the {@link MainActivity}. Players report through a {@link PlaybackDispatcher}, so callbacks
+ * always arrive on the main thread.
  */
 public abstract class PlaybackInfoListener {
 
-    @IntDef({State.INVALID, State.PLAYING, State.PAUSED, State.RESET, State.COMPLETED})
+    @IntDef({State.INVALID, State.PLAYING, State.PAUSED, State.RESET, State.COMPLETED,
+            State.IDLE, State.PREPARING, State.PREPARED, State.STOPPED, State.ERROR})
     @Retention(RetentionPolicy.SOURCE)
     @interface State {
 
@@ -36,6 +38,12 @@ public abstract class PlaybackInfoListener {
         int PAUSED = 1;
         int RESET = 2;
         int COMPLETED = 3;
+        // Reported by the state machines of MediaPlayerHolder and CodecPlayerHolder.
+        int IDLE = 4; // no media set
+        int PREPARING = 5;
+        int PREPARED = 6;
+        int STOPPED = 7; // rewound to the start, still prepared
+        int ERROR = 8; // needs a new load
     }
 
     public static String convertStateToString(@State int state) {
@@ -56,12 +64,35 @@ public abstract class PlaybackInfoListener {
             case State.RESET:
                 stateString = "RESET";
                 break;
+            case State.IDLE:
+                stateString = "IDLE";
+                break;
+            case State.PREPARING:
+                stateString = "PREPARING";
+                break;
+            case State.PREPARED:
+                stateString = "PREPARED";
+                break;
+            case State.STOPPED:
+                stateString = "STOPPED";
+                break;
+            case State.ERROR:
+                stateString = "ERROR";
+                break;
             default:
                 stateString = "N/A";
         }
         return stateString;
     }
 
+    /**
+     * Players only format messages for {@link #onLogUpdated(String)} while this returns
+     * {@code true}, so override both to receive the log.
+     */
+    boolean isLogEnabled() {
+        return false;
+    }
+
     void onLogUpdated(String formattedMessage) {
     }
 
@@ -76,4 +107,17 @@ public abstract class PlaybackInfoListener {
 
     void onPlaybackCompleted() {
     }
+
+    void onMediaTransition(int resourceId) {
+    }
+
+    void onError(String message) {
+    }
+
+    /**
+     * @param realtimeFactor seconds of audio decoded per second spent decoding
+     * @param underrunCount  number of times the audio track ran out of data so far
+     */
+    void onDecoderStatsUpdated(float realtimeFactor, int underrunCount) {
+    }
 }
\ No newline at end of file
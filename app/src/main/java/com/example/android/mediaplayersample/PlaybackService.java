@@ -0,0 +1,339 @@
+package com.example.android.mediaplayersample;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.arch.lifecycle.LiveData;
+import android.arch.lifecycle.MutableLiveData;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Owns the {@link PlayerAdapter} so that playback outlives {@link MainActivity}. The activity
+ * binds to the service and talks to it through {@link LocalBinder}; the service forwards the
+ * player's {@link PlaybackInfoListener} callbacks to whichever client is currently attached.
+ * <p>
+ * The first client hands over its {@link PlayQueue} and keeps the service up to date with the
+ * library. From then on the service moves through the queue itself, when a track completes or
+ * the player moves on to a chained one, whether or not a client is attached; clients observe
+ * {@link LocalBinder#getCurrentSong()} and adopt the queue when they bind again.
+ * <p>
+ * While music is playing the service is started and runs in the foreground, once playback is
+ * paused or completed it is allowed to stop as soon as no client is bound.
+ */
+public final class PlaybackService extends Service {
+
+    public static final String TAG = "PlaybackService";
+    private static final String CHANNEL_ID = "playback";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int UPCOMING_SONGS = 3; //songs warmed up ahead of the current one
+
+    private final LocalBinder mBinder = new LocalBinder();
+    private final MutableLiveData<Integer> mCurrentSong = new MutableLiveData<>();
+    private MediaLocator mLocator;
+    private PlayerAdapter mPlayerAdapter;
+    private volatile PlaybackInfoListener mClientListener;
+    private boolean mStarted;
+    private PlayQueue mPlayQueue; // null until a client hands one over
+    private TrackTable mTracks = new TrackTable();
+
+    /**
+     * Gives bound clients access to the player and lets them receive its callbacks.
+     */
+    final class LocalBinder extends Binder {
+
+        PlayerAdapter getPlayerAdapter() {
+            return mPlayerAdapter;
+        }
+
+        /**
+         * Pass {@code null} before unbinding so the service doesn't keep the client alive.
+         */
+        void setPlaybackInfoListener(PlaybackInfoListener listener) {
+            mClientListener = listener;
+        }
+
+        /**
+         * The queue the service plays from, {@code null} until a client set one.
+         */
+        PlayQueue getPlayQueue() {
+            return mPlayQueue;
+        }
+
+        void setPlayQueue(PlayQueue playQueue) {
+            mPlayQueue = playQueue;
+        }
+
+        /**
+         * The library the rows of the queue refer to, replaced whenever it grows or changes.
+         */
+        void setTracks(TrackTable tracks) {
+            mTracks = tracks;
+        }
+
+        /**
+         * The row of the song the service plays, set whenever it starts another one.
+         */
+        LiveData<Integer> getCurrentSong() {
+            return mCurrentSong;
+        }
+
+        /**
+         * Plays the song at {@code row}, which the caller made the current one of the queue.
+         */
+        void playSong(int row) {
+            PlaybackService.this.playSong(row);
+        }
+
+        /**
+         * Lets the player warm up the songs that follow the current one in play order.
+         */
+        void queueUpcomingSongs() {
+            PlaybackService.this.queueUpcomingSongs();
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mLocator = MediaLocator.getInstance(this);
+        // Gapless MediaPlayer, VBR MP3s without a seek table are decoded for exact seeks.
+        mPlayerAdapter = new MediaTypeRouter(this);
+        mPlayerAdapter.setPlaybackInfoListener(new ForwardingListener());
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mClientListener = null;
+        return false;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mPlayerAdapter.release();
+        Log.d(TAG, "onDestroy: release MediaPlayer");
+    }
+
+    /**
+     * Prints the {@link PlaybackTelemetry} snapshot, see
+     * {@code adb shell dumpsys activity service PlaybackService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PlaybackTelemetry.getInstance().snapshot().dump(writer);
+    }
+
+    private void playSong(int row) {
+        if (row < 0 || row >= mTracks.size()) {
+            return;
+        }
+        mCurrentSong.setValue(row);
+        // Playback starts once the media is prepared, the upcoming songs are queued after that.
+        mPlayerAdapter.loadMediaAsync(getSongResourceId(row), true)
+                .thenRun(this::queueUpcomingSongs);
+    }
+
+    private void queueUpcomingSongs() {
+        int[] resourceIds = new int[UPCOMING_SONGS];
+        int count = 0;
+        while (mPlayQueue != null && count < UPCOMING_SONGS) {
+            int song = mPlayQueue.peekNext(count + 1);
+            if (song == PlayQueue.NO_TRACK || song >= mTracks.size()) {
+                break;
+            }
+            resourceIds[count++] = getSongResourceId(song);
+        }
+        mPlayerAdapter.setUpcomingMedia(Arrays.copyOf(resourceIds, count));
+    }
+
+    private boolean hasNextSong() {
+        return mPlayQueue != null && mPlayQueue.peekNext(1) != PlayQueue.NO_TRACK;
+    }
+
+    private int getSongResourceId(int row) {
+        return mLocator.getId(mTracks.getResourceName(row));
+    }
+
+    /**
+     * Returns the row of the track named {@code resourceName}, or {@link PlayQueue#NO_TRACK}.
+     */
+    private int findRow(String resourceName) {
+        for (int row = 0; row < mTracks.size(); row++) {
+            if (mTracks.getResourceName(row).equals(resourceName)) {
+                return row;
+            }
+        }
+        return PlayQueue.NO_TRACK;
+    }
+
+    /**
+     * Makes the chained track the player moved on to the current one.
+     */
+    private void onMediaTransition(int resourceId) {
+        if (mPlayQueue == null) {
+            return;
+        }
+        // The queue may have changed since the track was chained, trust the player.
+        int next = mPlayQueue.peekNext(1);
+        int song;
+        if (next != PlayQueue.NO_TRACK && next < mTracks.size()
+                && getSongResourceId(next) == resourceId) {
+            song = mPlayQueue.advance();
+        } else {
+            song = findRow(mLocator.getName(resourceId));
+            mPlayQueue.setCurrent(song);
+        }
+        if (song != PlayQueue.NO_TRACK) {
+            mCurrentSong.setValue(song);
+        }
+        queueUpcomingSongs();
+    }
+
+    private void onPlaybackStarted() {
+        if (!mStarted) {
+            // Started so the service survives its clients unbinding while music plays.
+            startService(new Intent(this, PlaybackService.class));
+            mStarted = true;
+        }
+        startForeground(NOTIFICATION_ID, buildNotification());
+    }
+
+    private void onPlaybackStopped(boolean finished) {
+        stopForeground(finished);
+        if (finished && mStarted) {
+            stopSelf();
+            mStarted = false;
+        }
+    }
+
+    private Notification buildNotification() {
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && notificationManager.getNotificationChannel(CHANNEL_ID) == null) {
+            notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.notification_channel_playback),
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_play_circle_outline_black_24dp)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_playing))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Keeps the foreground state in sync with playback, moves through the queue and relays
+     * callbacks to the client.
+     */
+    private final class ForwardingListener extends PlaybackInfoListener {
+
+        @Override
+        boolean isLogEnabled() {
+            PlaybackInfoListener client = mClientListener;
+            return client != null && client.isLogEnabled();
+        }
+
+        @Override
+        void onLogUpdated(String formattedMessage) {
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onLogUpdated(formattedMessage);
+            }
+        }
+
+        @Override
+        void onDurationChanged(int duration) {
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onDurationChanged(duration);
+            }
+        }
+
+        @Override
+        void onPositionChanged(int position) {
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onPositionChanged(position);
+            }
+        }
+
+        @Override
+        void onStateChanged(@State int state) {
+            if (state == State.PLAYING) {
+                onPlaybackStarted();
+            } else if (state == State.PAUSED || state == State.STOPPED || state == State.ERROR) {
+                onPlaybackStopped(false);
+            } else if (state == State.COMPLETED && !hasNextSong()) {
+                onPlaybackStopped(true); // otherwise the next song starts right away
+            }
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onStateChanged(state);
+            }
+        }
+
+        @Override
+        void onPlaybackCompleted() {
+            // Reached only when the next song could not be chained to the finished one.
+            if (hasNextSong()) {
+                playSong(mPlayQueue.advance());
+                return;
+            }
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onPlaybackCompleted();
+            }
+        }
+
+        @Override
+        void onMediaTransition(int resourceId) {
+            PlaybackService.this.onMediaTransition(resourceId);
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onMediaTransition(resourceId);
+            }
+        }
+
+        @Override
+        void onError(String message) {
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onError(message);
+            }
+        }
+
+        @Override
+        void onDecoderStatsUpdated(float realtimeFactor, int underrunCount) {
+            PlaybackInfoListener client = mClientListener;
+            if (client != null) {
+                client.onDecoderStatsUpdated(realtimeFactor, underrunCount);
+            }
+        }
+    }
+}
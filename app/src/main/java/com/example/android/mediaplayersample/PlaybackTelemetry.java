@@ -0,0 +1,209 @@
+package com.example.android.mediaplayersample;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.IntDef;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide latency histograms and counters for the playback hot paths. Spans that start and
+ * end on the same thread are also emitted as {@link Trace} sections, so they show up in
+ * systrace next to the framework's own sections.
+ * <p>
+ * Recording is cheap enough to stay on in release builds; {@link #snapshot()} returns a copy
+ * that tests and debug screens can read without racing the recorders.
+ */
+final class PlaybackTelemetry {
+
+    @IntDef({Timer.LOAD_MEDIA, Timer.PREPARE, Timer.TRACK_SWITCH, Timer.LIBRARY_SCAN,
+            Timer.VISUALIZER_FRAME})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Timer {
+
+        int LOAD_MEDIA = 0; // loadMedia() or loadMediaAsync() until it returns
+        int PREPARE = 1; // data source set until the player is ready to play
+        int TRACK_SWITCH = 2; // main thread time spent handling a song click
+        int LIBRARY_SCAN = 3; // PlayerModel.loadLibrary() until onLoadFinished()
+        int VISUALIZER_FRAME = 4; // spectrum capture, analysis and drawing for one frame
+    }
+
+    @IntDef({Counter.PREPARE_FAILURES, Counter.SEEKS})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Counter {
+
+        int PREPARE_FAILURES = 0;
+        int SEEKS = 1;
+    }
+
+    private static final String[] TIMER_NAMES =
+            {"loadMedia", "prepare", "trackSwitch", "libraryScan", "visualizerFrame"};
+    private static final String[] COUNTER_NAMES = {"prepareFailures", "seeks"};
+    // Bucket i holds latencies below 2^i microseconds, the last one everything longer.
+    private static final int BUCKET_COUNT = 32;
+
+    private static final PlaybackTelemetry sInstance = new PlaybackTelemetry();
+
+    private final Histogram[] mHistograms = new Histogram[TIMER_NAMES.length];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    private PlaybackTelemetry() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    static PlaybackTelemetry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Opens a trace section and starts timing it. Must be closed with
+     * {@link #endSection(int, long)} on the same thread.
+     *
+     * @return the start time to pass to {@link #endSection(int, long)}
+     */
+    long beginSection(@Timer int timer) {
+        Trace.beginSection(TIMER_NAMES[timer]);
+        return start();
+    }
+
+    void endSection(@Timer int timer, long startNanos) {
+        record(timer, startNanos);
+        Trace.endSection();
+    }
+
+    /**
+     * Starts timing a span that ends on another thread or in a callback, which trace sections
+     * can't cover; finish it with {@link #record(int, long)}.
+     */
+    long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    void record(@Timer int timer, long startNanos) {
+        mHistograms[timer].add((SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+    }
+
+    void increment(@Counter int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i].copyTo(snapshot, i);
+        }
+        for (int i = 0; i < snapshot.mCounters.length; i++) {
+            snapshot.mCounters[i] = mCounters.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Clears everything recorded so far, so a test can measure from a known state.
+     */
+    void reset() {
+        for (Histogram histogram : mHistograms) {
+            histogram.clear();
+        }
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+    }
+
+    /**
+     * Immutable copy of the telemetry at the time {@link #snapshot()} was called. Latencies are
+     * in microseconds, percentiles are the upper bound of the bucket they fall in.
+     */
+    static final class Snapshot {
+
+        private final long[][] mBuckets = new long[TIMER_NAMES.length][BUCKET_COUNT];
+        private final long[] mCounts = new long[TIMER_NAMES.length];
+        private final long[] mSumsUs = new long[TIMER_NAMES.length];
+        private final long[] mMaxUs = new long[TIMER_NAMES.length];
+        private final long[] mCounters = new long[COUNTER_NAMES.length];
+
+        private Snapshot() {
+        }
+
+        long getCount(@Timer int timer) {
+            return mCounts[timer];
+        }
+
+        long getMeanUs(@Timer int timer) {
+            return mCounts[timer] == 0 ? 0 : mSumsUs[timer] / mCounts[timer];
+        }
+
+        long getMaxUs(@Timer int timer) {
+            return mMaxUs[timer];
+        }
+
+        /**
+         * @param fraction between 0 and 1, 0.5 for the median
+         */
+        long getPercentileUs(@Timer int timer, double fraction) {
+            long rank = (long) Math.ceil(fraction * mCounts[timer]);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[timer][i];
+                if (seen > 0 && seen >= rank) {
+                    return Math.min(mMaxUs[timer], (1L << i) - 1);
+                }
+            }
+            return mMaxUs[timer];
+        }
+
+        long getCounter(@Counter int counter) {
+            return mCounters[counter];
+        }
+
+        void dump(PrintWriter writer) {
+            for (int timer = 0; timer < TIMER_NAMES.length; timer++) {
+                writer.println(String.format(Locale.US,
+                        "%s: count=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms",
+                        TIMER_NAMES[timer], mCounts[timer], getMeanUs(timer) / 1000f,
+                        getPercentileUs(timer, 0.5) / 1000f, getPercentileUs(timer, 0.9) / 1000f,
+                        getPercentileUs(timer, 0.99) / 1000f, mMaxUs[timer] / 1000f));
+            }
+            for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+                writer.println(COUNTER_NAMES[counter] + ": " + mCounters[counter]);
+            }
+        }
+    }
+
+    private static final class Histogram {
+
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mSumUs;
+        private long mMaxUs;
+
+        synchronized void add(long latencyUs) {
+            int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(latencyUs));
+            mBuckets[bucket]++;
+            mCount++;
+            mSumUs += latencyUs;
+            mMaxUs = Math.max(mMaxUs, latencyUs);
+        }
+
+        synchronized void copyTo(Snapshot snapshot, int timer) {
+            System.arraycopy(mBuckets, 0, snapshot.mBuckets[timer], 0, BUCKET_COUNT);
+            snapshot.mCounts[timer] = mCount;
+            snapshot.mSumsUs[timer] = mSumUs;
+            snapshot.mMaxUs[timer] = mMaxUs;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(mBuckets, 0);
+            mCount = 0;
+            mSumUs = 0;
+            mMaxUs = 0;
+        }
+    }
+}
@@ -16,13 +16,31 @@
 
 package com.example.android.mediaplayersample;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Allows {@link MainActivity} to control media playback of {@link MediaPlayerHolder}.
  */
 public interface PlayerAdapter {
 
+    void setPlaybackInfoListener(PlaybackInfoListener listener);
+
     void loadMedia(int resourceId);
 
+    /**
+     * Prepares the media without blocking the caller. The returned future completes with the
+     * duration of the media once it is prepared, or exceptionally if it can't be loaded; the
+     * failure is also reported through {@link PlaybackInfoListener#onError(String)}.
+     */
+    CompletableFuture<Integer> loadMediaAsync(int resourceId, boolean playWhenPrepared);
+
+    /**
+     * Names the tracks that follow the loaded one, in play order, so they can be warmed up ahead
+     * of time. Loading one of them afterwards, or reaching it at the end of the current track,
+     * starts it without waiting for the disk or the decoder.
+     */
+    void setUpcomingMedia(int... resourceIds);
+
     void release();
 
     boolean isPlaying();
@@ -36,4 +54,20 @@ public interface PlayerAdapter {
     void initializeProgressCallback();
 
     void seekTo(int position);
+
+    /**
+     * Returns the playback position in milliseconds, 0 if no media is loaded.
+     */
+    int getCurrentPosition();
+
+    /**
+     * Returns the audio session every track is played in. It stays the same for the life of
+     * the adapter, so effects and visualizers attached to it follow track changes.
+     */
+    int getAudioSessionId();
+
+    /**
+     * Position updates are only delivered while the progress is visible to the user.
+     */
+    void setProgressVisible(boolean visible);
 }
@@ -1,19 +1,656 @@
 package com.example.android.mediaplayersample;
 
+import android.Manifest;
+import android.app.Application;
+import android.arch.lifecycle.AndroidViewModel;
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
-import android.arch.lifecycle.ViewModel;
+import android.arch.lifecycle.Observer;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.arch.lifecycle.ProcessLifecycleOwner;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Trace;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
 
-class PlayerModel {
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-       //public final MutableLiveData<Integer> seekBarLiveData =
-         //       new MutableLiveData<>();
+/**
+ * Holds the library and the playback state of {@link MainActivity}, so that they outlive the
+ * activity when it is recreated. The model loads the library once through a
+ * {@link LibrarySource}, keeps the {@link SearchIndex} built on it, and stays bound to the
+ * {@link PlaybackService} for as long as it lives. The service owns the {@link PlayQueue} and
+ * moves through it on its own; the model hands it the queue and the library, and follows the
+ * song it plays. A new activity instance just observes the LiveData below: it neither scans
+ * the media again nor prepares the player.
+ * <p>
+ * The library is rescanned when the app returns to the foreground, not each time an activity
+ * starts. All LiveData are set on the main thread; track tables are immutable snapshots.
+ */
+public final class PlayerModel extends AndroidViewModel implements LibrarySource.Callback {
 
-        public PlayerModel() {
-            // trigger user load.
+    private static final String TAG = "PlayerModel";
+    // The activity's preferences, where the settings were kept before this model held them.
+    private static final String PREFERENCES = "MainActivity";
+    // Directories scanned for music instead of the bundled raw resources, when set.
+    private static final String PREF_MUSIC_DIRECTORIES = "music_directories";
+    private static final int CHECKPOINT_INTERVAL_MS = 10000; // while playing
+    private static final ExecutorService sSearchIndexExecutor =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "SearchIndex");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final SharedPreferences mPreferences;
+    private final SessionStore mSessionStore;
+    private final PlaybackTelemetry mTelemetry = PlaybackTelemetry.getInstance();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final MediaLocator mLocator;
+    private final WaveformCache mWaveformCache;
+    // Handed to the service, or replaced by the one it kept from an earlier model.
+    private PlayQueue mPlayQueue;
+    // The service plays from the full library of an earlier model, not from partial tables.
+    private boolean mQueueAdopted;
+    private final ForegroundObserver mForegroundObserver = new ForegroundObserver();
+    private final Observer<Integer> mServiceSongObserver = song -> mCurrentSong.setValue(song);
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+            mMainHandler.postDelayed(this, CHECKPOINT_INTERVAL_MS);
+        }
+    };
+    // The session saved by the previous process, null once the user picked another song.
+    private SessionStore.Session mSavedSession;
+    private boolean mResumed; // the player holds the saved song, loaded ahead of the library
+    private LibrarySource mLibrarySource;
+    private boolean mLibraryLoaded;
+    private long mLibraryScanStart;
+    private TrackTable mTrackTable = new TrackTable();
+    // Null while the index of a changed library is being rebuilt.
+    private SearchIndex mSearchIndex = new SearchIndex();
+    private int mSearchIndexGeneration;
+    private String mSearchQuery = "";
+    private boolean mVisualizerShown;
+    private boolean mCompleted; // the current song played to its end
+    private PlayerAdapter mPlayerAdapter;
+    private PlaybackService.LocalBinder mPlaybackBinder;
+
+    private final MutableLiveData<TrackTable> mTracks = new MutableLiveData<>();
+    private final MutableLiveData<int[]> mSearchResults = new MutableLiveData<>();
+    private final MutableLiveData<Integer> mCurrentSong = new MutableLiveData<>();
+    private final MutableLiveData<Boolean> mPlaying = new MutableLiveData<>();
+    private final MutableLiveData<Integer> mDuration = new MutableLiveData<>();
+    private final MutableLiveData<Integer> mPosition = new MutableLiveData<>();
+    private final MutableLiveData<String> mError = new MutableLiveData<>();
+    private final MutableLiveData<Integer> mAudioSession = new MutableLiveData<>();
+
+    private final ServiceConnection mPlaybackConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mPlaybackBinder = (PlaybackService.LocalBinder) service;
+            mPlaybackBinder.setPlaybackInfoListener(new PlaybackListener());
+            mPlayerAdapter = mPlaybackBinder.getPlayerAdapter();
+            mAudioSession.setValue(mPlayerAdapter.getAudioSessionId());
+            PlayQueue kept = mPlaybackBinder.getPlayQueue();
+            if (kept != null) {
+                // The service kept the queue of an earlier model, and may have moved on in it.
+                mPlayQueue = kept;
+                mPlayQueue.setTrackCount(mTrackTable.size());
+                mQueueAdopted = true;
+            } else {
+                mPlaybackBinder.setPlayQueue(mPlayQueue);
+            }
+            if (mLibraryLoaded || !mQueueAdopted) {
+                mPlaybackBinder.setTracks(mTrackTable.snapshot());
+            }
+            mPlaybackBinder.getCurrentSong().observeForever(mServiceSongObserver);
+            if (mPlayerAdapter.isPlaying()) {
+                // Reattached to music that kept playing while no activity was around.
+                mSavedSession = null; // the service is past it
+                mPlayerAdapter.initializeProgressCallback();
+                mPlaying.setValue(true);
+            } else {
+                mPlayerAdapter.setProgressVisible(false);
+                resumeSession();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mPlaybackBinder = null;
+            mPlayerAdapter = null;
+        }
+    };
+
+    public PlayerModel(Application application) {
+        super(application);
+        mPreferences = application.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mSessionStore = SessionStore.getInstance(application);
+        mLocator = MediaLocator.getInstance(application);
+        mWaveformCache = WaveformCache.getInstance(application);
+        mSavedSession = mSessionStore.load();
+        SessionStore.Session session = mSavedSession;
+        if (session == null) {
+            session = new SessionStore.Session();
+            session.shuffleSeed = new Random().nextLong();
+        }
+        mPlayQueue = new PlayQueue(new ShuffleEngine(session.shuffleSeed));
+        mPlayQueue.setMode(session.playMode);
+        mCurrentSong.setValue(session.currentSong);
+        application.bindService(new Intent(application, PlaybackService.class),
+                mPlaybackConnection, Context.BIND_AUTO_CREATE);
+        ProcessLifecycleOwner.get().getLifecycle().addObserver(mForegroundObserver);
+        loadLibrary();
+    }
+
+    @Override
+    protected void onCleared() {
+        mMainHandler.removeCallbacks(mCheckpointTask);
+        checkpoint();
+        ProcessLifecycleOwner.get().getLifecycle().removeObserver(mForegroundObserver);
+        mLibrarySource.cancel();
+        // The service keeps playing on its own, it just stops talking to this model.
+        if (mPlaybackBinder != null) {
+            mPlaybackBinder.setPlaybackInfoListener(null);
+            mPlaybackBinder.getCurrentSong().removeObserver(mServiceSongObserver);
+        }
+        getApplication().unbindService(mPlaybackConnection);
+    }
+
+    /**
+     * The library as loaded so far, replaced by a new snapshot whenever it grows or changes.
+     */
+    LiveData<TrackTable> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * The rows matching the search query, best first, or {@code null} when nothing is searched.
+     */
+    LiveData<int[]> getSearchResults() {
+        return mSearchResults;
+    }
+
+    /**
+     * The row of the selected song in the latest track table.
+     */
+    LiveData<Integer> getCurrentSong() {
+        return mCurrentSong;
+    }
+
+    /**
+     * Unset until a song is loaded in the player, then whether it is playing.
+     */
+    LiveData<Boolean> isPlaying() {
+        return mPlaying;
+    }
+
+    LiveData<Integer> getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * The playback position in milliseconds, updated while the progress is visible.
+     */
+    LiveData<Integer> getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * The latest playback error, {@code null} once it was shown, see {@link #onErrorShown()}.
+     */
+    LiveData<String> getError() {
+        return mError;
+    }
+
+    /**
+     * The audio session the music plays in, set once connected to the player.
+     */
+    LiveData<Integer> getAudioSession() {
+        return mAudioSession;
+    }
+
+    void onErrorShown() {
+        mError.setValue(null);
+    }
+
+    /**
+     * Whether the user turned the spectrum on, kept here so it stays on across recreation.
+     */
+    boolean isVisualizerShown() {
+        return mVisualizerShown;
+    }
+
+    void setVisualizerShown(boolean shown) {
+        mVisualizerShown = shown;
+    }
+
+    String getSearchQuery() {
+        return mSearchQuery;
+    }
+
+    /**
+     * Narrows {@link #getSearchResults()} down to the tracks matching {@code query}.
+     */
+    void setSearchQuery(String query) {
+        mSearchQuery = query;
+        applySearch();
+    }
+
+    @PlayQueue.Mode
+    int getPlayMode() {
+        return mPlayQueue.getMode();
+    }
+
+    void setPlayMode(@PlayQueue.Mode int mode) {
+        mPlayQueue.setMode(mode);
+        if (mPlayerAdapter != null) {
+            queueUpcomingSongs(); // a paused song still chains to what was queued
+        }
+    }
+
+    /**
+     * Plays the song at {@code row}, as when the user picks it.
+     */
+    void play(int row) {
+        long start = mTelemetry.beginSection(PlaybackTelemetry.Timer.TRACK_SWITCH);
+        mPlayQueue.setCurrent(row);
+        playSong(row);
+        mTelemetry.endSection(PlaybackTelemetry.Timer.TRACK_SWITCH, start);
+    }
+
+    void togglePlayback() {
+        if (mPlayerAdapter == null) {
+            return;
+        }
+        // mPlaying follows once the player reports its new state.
+        if (mPlayerAdapter.isPlaying()) {
+            mPlayerAdapter.pause();
+        } else {
+            mPlayerAdapter.play();
+        }
+    }
+
+    void seekTo(int position) {
+        if (mPlayerAdapter != null) {
+            mPlayerAdapter.seekTo(position);
+        }
+    }
+
+    void playNextSong() {
+        int song = mPlayQueue.moveToNext();
+        if (song != PlayQueue.NO_TRACK) {
+            playSong(song);
+        }
+    }
+
+    void playPreviousSong() {
+        int song = mPlayQueue.moveToPrevious();
+        if (song != PlayQueue.NO_TRACK) {
+            playSong(song);
+        }
+    }
+
+    /**
+     * Position updates are only delivered while the progress is visible to the user.
+     */
+    void setProgressVisible(boolean visible) {
+        if (mPlayerAdapter != null) {
+            mPlayerAdapter.setProgressVisible(visible);
+        }
+    }
+
+    /**
+     * Plays the music below {@code directory} on external storage from now on. The caller
+     * must hold the permission to read it.
+     */
+    void useMusicDirectory(File directory) {
+        mPreferences.edit()
+                .putStringSet(PREF_MUSIC_DIRECTORIES,
+                        Collections.singleton(directory.getAbsolutePath()))
+                .apply();
+        mLibrarySource.cancel();
+        mLibraryLoaded = false;
+        mSavedSession = null;
+        mResumed = false;
+        mQueueAdopted = false;
+        // The saved song belongs to the old library, start the new one from its first song.
+        SessionStore.Session session = new SessionStore.Session();
+        session.playMode = mPlayQueue.getMode();
+        session.shuffleSeed = mPlayQueue.getShuffle().getSeed();
+        mSessionStore.save(session);
+        mTrackTable = new TrackTable();
+        mPlayQueue.resetTracks(0, PlayQueue.NO_TRACK);
+        mSearchIndex = new SearchIndex();
+        ++mSearchIndexGeneration; // drops an index still being rebuilt for the old library
+        publishTracks(mTrackTable.snapshot());
+        queueUpcomingSongs(); // none, the rows of the old ones are gone
+        mCurrentSong.setValue(0);
+        loadLibrary();
+    }
+
+    private void loadLibrary() {
+        // Timed until onLoadFinished(), the trace section only covers the work done here.
+        mLibraryScanStart = mTelemetry.start();
+        Trace.beginSection("loadLibrary");
+        mLibrarySource = createLibrarySource();
+        mLibrarySource.load(this);
+        Trace.endSection();
+    }
+
+    /**
+     * Scans the configured music directories if there are any and they can be read, and falls
+     * back to the bundled raw resources otherwise.
+     */
+    private LibrarySource createLibrarySource() {
+        Application application = getApplication();
+        Set<String> directories =
+                mPreferences.getStringSet(PREF_MUSIC_DIRECTORIES, Collections.emptySet());
+        if (!directories.isEmpty() && ContextCompat.checkSelfPermission(application,
+                Manifest.permission.READ_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
+            List<File> roots = new ArrayList<>(directories.size());
+            for (String directory : directories) {
+                roots.add(new File(directory));
+            }
+            return new FileSystemSource(application, roots);
+        }
+        // Sorted, so every launch gives the songs the same rows and a saved shuffle still fits.
+        Field[] fields = R.raw.class.getFields();
+        Arrays.sort(fields, (first, second) -> first.getName().compareTo(second.getName()));
+        return new MetadataIndex(application, fields);
+    }
+
+    @Override
+    public void onTracksLoaded(List<TrackEntity> tracks) {
+        for (TrackEntity track : tracks) {
+            mTrackTable.add(track);
+        }
+        mPlayQueue.setTrackCount(mTrackTable.size());
+        TrackTable snapshot = mTrackTable.snapshot();
+        publishTracks(snapshot);
+        if (mSearchIndex != null) {
+            mSearchIndex.update(snapshot);
+            if (!mSearchQuery.isEmpty()) {
+                applySearch(); // the new tracks may match too
+            }
+        }
+    }
+
+    @Override
+    public void onLoadFinished(int trackCount) {
+        Log.d(TAG, "onLoadFinished: " + trackCount + " tracks");
+        mTelemetry.record(PlaybackTelemetry.Timer.LIBRARY_SCAN, mLibraryScanStart);
+        mLibraryLoaded = true;
+        if (mPlaybackBinder != null) {
+            mPlaybackBinder.setTracks(mTrackTable.snapshot());
+        }
+        restoreShuffle();
+        int current = findSavedSong();
+        mPlayQueue.setCurrent(current);
+        mCurrentSong.setValue(current); // its row is known now
+        if (mResumed) {
+            queueUpcomingSongs();
+        }
+        mWaveformCache.prefetch(mTrackTable.snapshot());
+    }
+
+    @Override
+    public void onLibraryChanged(List<TrackEntity> tracks) {
+        int currentSong = mCurrentSong.getValue();
+        String current = currentSong < mTrackTable.size()
+                ? mTrackTable.getResourceName(currentSong) : null;
+        int currentRow = PlayQueue.NO_TRACK;
+        TrackTable table = new TrackTable();
+        for (TrackEntity track : tracks) {
+            if (track.resourceName.equals(current)) {
+                currentRow = table.size();
+            }
+            table.add(track);
+        }
+        Log.d(TAG, "onLibraryChanged: " + table.size() + " tracks");
+        mTrackTable = table;
+        mPlayQueue.resetTracks(table.size(), currentRow);
+        publishTracks(table.snapshot());
+        mCurrentSong.setValue(Math.max(0, currentRow));
+        rebuildSearchIndex(table.snapshot());
+        if (mPlayerAdapter != null && mPlayerAdapter.isPlaying()) {
+            queueUpcomingSongs(); // the rows of the queued songs may have changed
+        }
+    }
+
+    /**
+     * Shows the library and lets the service play from it.
+     */
+    private void publishTracks(TrackTable snapshot) {
+        mTracks.setValue(snapshot);
+        if (mPlaybackBinder != null && (mLibraryLoaded || !mQueueAdopted)) {
+            mPlaybackBinder.setTracks(snapshot);
+        }
+    }
+
+    /**
+     * Indexes a replaced library in the background, searches wait for it.
+     */
+    private void rebuildSearchIndex(final TrackTable tracks) {
+        mSearchIndex = null;
+        final int generation = ++mSearchIndexGeneration;
+        sSearchIndexExecutor.execute(() -> {
+            final SearchIndex index = new SearchIndex();
+            index.update(tracks);
+            mMainHandler.post(() -> {
+                if (generation == mSearchIndexGeneration) {
+                    mSearchIndex = index;
+                    if (!mSearchQuery.isEmpty()) {
+                        applySearch();
+                    }
+                }
+            });
+        });
+    }
+
+    private void applySearch() {
+        if (mSearchIndex != null) {
+            mSearchResults.setValue(mSearchIndex.search(mSearchQuery));
+        }
+    }
+
+    /**
+     * Prepares the song of the saved session and seeks to where it was left, without waiting
+     * for the library: the song is found by name, its row is only checked once loaded.
+     */
+    private void resumeSession() {
+        final SessionStore.Session session = mSavedSession;
+        if (session == null || session.resourceName == null || mPlaying.getValue() != null) {
+            return;
+        }
+        if (MediaLocator.isFile(session.resourceName)
+                && !new File(session.resourceName).exists()) {
+            return; // deleted while the app was away
+        }
+        int resourceId = mLocator.getId(session.resourceName);
+        if (resourceId == 0) {
+            return; // no longer bundled
+        }
+        mPlayerAdapter.loadMediaAsync(resourceId, false).thenRun(() -> {
+            if (mSavedSession != session) {
+                return; // the user picked a song in the meantime
+            }
+            mPlayerAdapter.seekTo(session.positionMs);
+            mPosition.setValue(session.positionMs);
+            mResumed = true;
+            mPlaying.setValue(mPlayerAdapter.isPlaying()); // played if asked to while loading
+            if (mLibraryLoaded) {
+                queueUpcomingSongs();
+            }
+        });
+    }
+
+    /**
+     * Returns the row of the saved song in the loaded library. It moves when files were added
+     * or removed since the session was saved.
+     */
+    private int findSavedSong() {
+        int saved = mCurrentSong.getValue();
+        SessionStore.Session session = mSavedSession;
+        if (session == null || session.resourceName == null || saved < mTrackTable.size()
+                && session.resourceName.equals(mTrackTable.getResourceName(saved))) {
+            return saved;
+        }
+        int row = findRow(session.resourceName);
+        return row != PlayQueue.NO_TRACK ? row : saved;
+    }
+
+    /**
+     * Returns the row of the track named {@code resourceName}, or {@link PlayQueue#NO_TRACK}.
+     */
+    private int findRow(String resourceName) {
+        for (int row = 0; row < mTrackTable.size(); row++) {
+            if (mTrackTable.getResourceName(row).equals(resourceName)) {
+                return row;
+            }
+        }
+        return PlayQueue.NO_TRACK;
+    }
+
+    /**
+     * Continues the saved shuffle walk where it was left, if the library hasn't changed size.
+     */
+    private void restoreShuffle() {
+        SessionStore.Session session = mSavedSession;
+        if (session != null && mPlayQueue.getMode() == PlayQueue.Mode.SHUFFLE
+                && session.trackCount == mPlayQueue.getTrackCount()) {
+            mPlayQueue.getShuffle().restore(session.shuffleCycle, session.shuffleCycleStart,
+                    session.shufflePosition);
+        }
+    }
+
+    /**
+     * Saves the play queue and the position in the current song. Cheap enough to run every
+     * {@link #CHECKPOINT_INTERVAL_MS} while playing, the record is written in the background.
+     */
+    private void checkpoint() {
+        SessionStore.Session session;
+        if (mLibraryLoaded) {
+            int current = mCurrentSong.getValue();
+            ShuffleEngine shuffle = mPlayQueue.getShuffle();
+            session = new SessionStore.Session();
+            session.playMode = mPlayQueue.getMode();
+            session.currentSong = current;
+            session.trackCount = mPlayQueue.getTrackCount();
+            session.shuffleSeed = shuffle.getSeed();
+            session.shuffleCycle = shuffle.getCycle();
+            session.shuffleCycleStart = shuffle.getCycleStart();
+            session.shufflePosition = shuffle.getPosition();
+            session.resourceName = current >= 0 && current < mTrackTable.size()
+                    ? mTrackTable.getResourceName(current) : null;
+        } else if (mResumed) {
+            // A partly loaded library would not restore the same walk, keep the saved one.
+            session = mSavedSession;
+        } else {
+            return;
+        }
+        if (mCompleted) {
+            session.positionMs = 0; // the player still reports the end of the song
+        } else if (mPlayerAdapter != null && mPlaying.getValue() != null) {
+            session.positionMs = mPlayerAdapter.getCurrentPosition();
+        } else if (mSavedSession != null) {
+            session.positionMs = mSavedSession.positionMs; // nothing was played yet
+        }
+        mSessionStore.save(session);
+    }
+
+    private void playSong(int song) {
+        if (mPlaybackBinder == null) {
+            return; // not bound to the PlaybackService yet
+        }
+        mSavedSession = null;
+        mResumed = false;
+        mPlaybackBinder.playSong(song); // sets mCurrentSong through the service
+    }
+
+    private void queueUpcomingSongs() {
+        if (mPlaybackBinder != null) {
+            mPlaybackBinder.queueUpcomingSongs();
+        }
+    }
+
+    /**
+     * Rescans the library when the app comes back to the foreground, since files may have
+     * changed while it was away, and saves the session when it leaves.
+     */
+    private final class ForegroundObserver implements LifecycleObserver {
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_START)
+        void onForeground() {
+            if (mLibraryLoaded) {
+                mLibrarySource.rescan();
+            }
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+        void onBackground() {
+            checkpoint();
+        }
+    }
+
+    private final class PlaybackListener extends PlaybackInfoListener {
+
+        @Override
+        void onDurationChanged(int duration) {
+            mDuration.setValue(duration);
+        }
+
+        @Override
+        void onPositionChanged(int position) {
+            mPosition.setValue(position);
+        }
+
+        @Override
+        void onStateChanged(@State int state) {
+            if (state == State.PLAYING || mPlaying.getValue() != null) {
+                // Stays unset until something was played or resumed, see resumeSession().
+                mPlaying.setValue(state == State.PLAYING);
+            }
+            mMainHandler.removeCallbacks(mCheckpointTask);
+            mCompleted = state == State.COMPLETED;
+            if (state == State.PLAYING) {
+                mMainHandler.postDelayed(mCheckpointTask, CHECKPOINT_INTERVAL_MS);
+            } else if (state == State.PAUSED || state == State.STOPPED
+                    || state == State.COMPLETED) {
+                checkpoint();
+            }
+        }
+
+        @Override
+        void onMediaTransition(int resourceId) {
+            checkpoint(); // the service already moved the queue and the current song
         }
 
-        void doAction() {
-            // depending on the action, do necessary business logic calls and update the
-            // userLiveData.
+        @Override
+        void onError(String message) {
+            Log.w(TAG, "onError: " + message);
+            mError.setValue(message);
         }
     }
+}
@@ -0,0 +1,304 @@
+package com.example.android.mediaplayersample;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * Type-ahead search over the titles and artists of a {@link TrackTable}. Both are split into
+ * words, folded to lower case without accents, and stored in a prefix trie whose nodes and
+ * postings live in parallel primitive arrays, so the index holds no object per track or word.
+ * Plain Java, so it can be benchmarked off-device.
+ * <p>
+ * A query matches the rows in which every query word is the prefix of some word of the title
+ * or artist. Matches are ranked by where the words were found: the title beats the artist, the
+ * first word of a field beats the others and a whole word beats a prefix. Rows that rank the
+ * same keep their table order.
+ * <p>
+ * The index follows a table through {@link #update(TrackTable)} the way {@link SongsAdapter}
+ * does: rows appended to the indexed table are added incrementally, any other table replaces
+ * the index. It is not thread safe.
+ */
+final class SearchIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NONE = -1;
+    private static final int ROOT = 0;
+    // Posting flags, which also make up the score of a match.
+    private static final int IN_TITLE = 4;
+    private static final int FIRST_WORD = 2;
+    private static final int WHOLE_WORD = 1; // only ever part of a score
+    private static final int MAX_WORD_SCORE = IN_TITLE | FIRST_WORD | WHOLE_WORD;
+
+    // Trie nodes: the char leading to each node, its first child and next sibling, and the
+    // head of the list of postings of the words ending at the node.
+    private char[] mNodeChars;
+    private int[] mFirstChildren;
+    private int[] mNextSiblings;
+    private int[] mFirstPostings;
+    private int mNodeCount;
+
+    // Postings, linked per node: the row holding a word and the flags it was found with.
+    private int[] mPostingRows;
+    private byte[] mPostingFlags;
+    private int[] mNextPostings;
+    private int mPostingCount;
+
+    // Per row query state, reused by every search. Each query gets marks above all the earlier
+    // ones; a row matched the first k + 1 words of a query when its mark is the k-th of them.
+    private int[] mMarks = new int[0];
+    private int[] mScores = new int[0]; // summed over the words before the current one
+    private int[] mWordScores = new int[0]; // best score for the current word
+    private int mQueryBase;
+    private int[] mStack = new int[INITIAL_CAPACITY];
+
+    private TrackTable mTracks = new TrackTable().snapshot();
+    private int mRowCount;
+
+    SearchIndex() {
+        clear();
+    }
+
+    /**
+     * Indexes {@code tracks}, an immutable snapshot. Only the new rows are added when it
+     * extends the table indexed so far.
+     */
+    void update(TrackTable tracks) {
+        if (!tracks.isExtensionOf(mTracks)) {
+            clear();
+        }
+        mTracks = tracks;
+        if (tracks.size() > mMarks.length) {
+            int capacity = Math.max(tracks.size(), mMarks.length * 2);
+            mMarks = Arrays.copyOf(mMarks, capacity);
+            mScores = Arrays.copyOf(mScores, capacity);
+            mWordScores = Arrays.copyOf(mWordScores, capacity);
+        }
+        for (int row = mRowCount; row < tracks.size(); row++) {
+            addWords(row, tracks.getTitle(row), IN_TITLE);
+            addWords(row, tracks.getArtist(row), 0);
+        }
+        mRowCount = tracks.size();
+    }
+
+    /**
+     * Returns the rows matching {@code query}, best first, or {@code null} if it holds no words,
+     * in which case nothing should be filtered out.
+     */
+    int[] search(String query) {
+        String[] words = splitWords(normalize(query));
+        if (words.length == 0) {
+            return null;
+        }
+        if (mQueryBase > Integer.MAX_VALUE - words.length) {
+            Arrays.fill(mMarks, 0);
+            mQueryBase = 0;
+        }
+        int base = mQueryBase + 1;
+        mQueryBase += words.length;
+        for (int w = 0; w < words.length; w++) {
+            int node = find(words[w]);
+            if (node == NONE) {
+                return new int[0];
+            }
+            markSubtree(node, base, w);
+        }
+        return rank(base + words.length - 1, words.length);
+    }
+
+    /**
+     * Folds {@code text} to lower case and strips the accents, so that typing a plain letter
+     * finds its accented forms too.
+     */
+    static String normalize(String text) {
+        // Plain ASCII has nothing to decompose, and most tags are plain ASCII.
+        String decomposed = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                folded.append(Character.toLowerCase(c));
+            }
+        }
+        return folded.toString();
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] splitWords(String text) {
+        String[] words = new String[4];
+        int count = 0;
+        int start = NONE;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start == NONE) {
+                start = i;
+            } else if (!inWord && start != NONE) {
+                if (count == words.length) {
+                    words = Arrays.copyOf(words, count * 2);
+                }
+                words[count++] = text.substring(start, i);
+                start = NONE;
+            }
+        }
+        return Arrays.copyOf(words, count);
+    }
+
+    private void clear() {
+        mNodeChars = new char[INITIAL_CAPACITY];
+        mFirstChildren = new int[INITIAL_CAPACITY];
+        mNextSiblings = new int[INITIAL_CAPACITY];
+        mFirstPostings = new int[INITIAL_CAPACITY];
+        mNodeCount = 0;
+        newNode('\0');
+        mPostingRows = new int[INITIAL_CAPACITY];
+        mPostingFlags = new byte[INITIAL_CAPACITY];
+        mNextPostings = new int[INITIAL_CAPACITY];
+        mPostingCount = 0;
+        mRowCount = 0;
+    }
+
+    private void addWords(int row, String text, int fieldFlags) {
+        if (text == null) {
+            return;
+        }
+        int flags = fieldFlags | FIRST_WORD;
+        for (String word : splitWords(normalize(text))) {
+            int node = ROOT;
+            for (int i = 0; i < word.length(); i++) {
+                node = child(node, word.charAt(i));
+            }
+            addPosting(node, row, flags);
+            flags = fieldFlags;
+        }
+    }
+
+    /**
+     * Returns the child of {@code node} for {@code c}, adding it if needed.
+     */
+    private int child(int node, char c) {
+        int child = mFirstChildren[node];
+        while (child != NONE) {
+            if (mNodeChars[child] == c) {
+                return child;
+            }
+            child = mNextSiblings[child];
+        }
+        child = newNode(c);
+        mNextSiblings[child] = mFirstChildren[node];
+        mFirstChildren[node] = child;
+        return child;
+    }
+
+    private int newNode(char c) {
+        if (mNodeCount == mNodeChars.length) {
+            int capacity = mNodeCount * 2;
+            mNodeChars = Arrays.copyOf(mNodeChars, capacity);
+            mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+            mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+            mFirstPostings = Arrays.copyOf(mFirstPostings, capacity);
+        }
+        int node = mNodeCount++;
+        mNodeChars[node] = c;
+        mFirstChildren[node] = NONE;
+        mNextSiblings[node] = NONE;
+        mFirstPostings[node] = NONE;
+        return node;
+    }
+
+    private void addPosting(int node, int row, int flags) {
+        if (mPostingCount == mPostingRows.length) {
+            int capacity = mPostingCount * 2;
+            mPostingRows = Arrays.copyOf(mPostingRows, capacity);
+            mPostingFlags = Arrays.copyOf(mPostingFlags, capacity);
+            mNextPostings = Arrays.copyOf(mNextPostings, capacity);
+        }
+        int posting = mPostingCount++;
+        mPostingRows[posting] = row;
+        mPostingFlags[posting] = (byte) flags;
+        mNextPostings[posting] = mFirstPostings[node];
+        mFirstPostings[node] = posting;
+    }
+
+    private int find(String prefix) {
+        int node = ROOT;
+        for (int i = 0; i < prefix.length() && node != NONE; i++) {
+            int child = mFirstChildren[node];
+            while (child != NONE && mNodeChars[child] != prefix.charAt(i)) {
+                child = mNextSiblings[child];
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Advances to {@code base + word} the mark of every row that matched the words before
+     * {@code word} and has a word below {@code node}. A row's score for a query word is the
+     * score of its best posting for it.
+     */
+    private void markSubtree(int node, int base, int word) {
+        int mark = base + word;
+        int top = 0;
+        mStack[top++] = node;
+        while (top > 0) {
+            int current = mStack[--top];
+            int wholeWord = current == node ? WHOLE_WORD : 0;
+            for (int p = mFirstPostings[current]; p != NONE; p = mNextPostings[p]) {
+                int row = mPostingRows[p];
+                int score = mPostingFlags[p] | wholeWord;
+                int rowMark = mMarks[row];
+                if (rowMark == mark) {
+                    mWordScores[row] = Math.max(mWordScores[row], score);
+                } else if (word == 0 ? rowMark < base : rowMark == mark - 1) {
+                    mMarks[row] = mark;
+                    mScores[row] = word == 0 ? 0 : mScores[row] + mWordScores[row];
+                    mWordScores[row] = score;
+                }
+            }
+            for (int child = mFirstChildren[current]; child != NONE;
+                 child = mNextSiblings[child]) {
+                if (top == mStack.length) {
+                    mStack = Arrays.copyOf(mStack, top * 2);
+                }
+                mStack[top++] = child;
+            }
+        }
+    }
+
+    /**
+     * Collects the rows marked {@code mark}, sorted by score with a counting sort, which keeps
+     * rows of the same score in table order.
+     */
+    private int[] rank(int mark, int wordCount) {
+        int[] rowsAtScore = new int[wordCount * MAX_WORD_SCORE + 2];
+        int matches = 0;
+        for (int row = 0; row < mRowCount; row++) {
+            if (mMarks[row] == mark) {
+                mScores[row] += mWordScores[row];
+                rowsAtScore[mScores[row]]++;
+                matches++;
+            }
+        }
+        // Turn the counts into the start of each score's run, best score first.
+        int start = 0;
+        for (int score = rowsAtScore.length - 1; score >= 0; score--) {
+            int count = rowsAtScore[score];
+            rowsAtScore[score] = start;
+            start += count;
+        }
+        int[] results = new int[matches];
+        for (int row = 0; row < mRowCount; row++) {
+            if (mMarks[row] == mark) {
+                results[rowsAtScore[mScores[row]]++] = row;
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out the {@link Mp3SeekIndex} of MP3 tracks. An index is built the first time a version
+ * of a track is played and stored in the {@link TrackDatabase} next to the track metadata, so
+ * the frames of a track are only walked once; the indexes of the last few tracks are also kept
+ * in memory.
+ */
+final class SeekIndexCache {
+
+    private static final int MAX_IN_MEMORY = 4;
+    private static volatile SeekIndexCache sInstance;
+
+    private final MediaLocator mLocator;
+    private final TrackDatabase mDatabase;
+    // Guarded by itself, keyed by the ids of the MediaLocator.
+    private final Map<Integer, Entry> mRecent =
+            new LinkedHashMap<Integer, Entry>(MAX_IN_MEMORY, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                    return size() > MAX_IN_MEMORY;
+                }
+            };
+
+    private SeekIndexCache(Context context) {
+        mLocator = MediaLocator.getInstance(context);
+        mDatabase = TrackDatabase.getInstance(context);
+    }
+
+    static SeekIndexCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (SeekIndexCache.class) {
+                if (sInstance == null) {
+                    sInstance = new SeekIndexCache(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the seek index of {@code media}, which must be an MP3 track, or {@code null} if
+     * no frames were found in it. Must not be called on the main thread.
+     */
+    Mp3SeekIndex get(MappedMedia media) {
+        int resourceId = media.getResourceId();
+        long fingerprint = media.fingerprint();
+        synchronized (mRecent) {
+            Entry recent = mRecent.get(resourceId);
+            if (recent != null && recent.mFingerprint == fingerprint) {
+                return recent.mIndex;
+            }
+        }
+
+        String resourceName = mLocator.getName(resourceId);
+        SeekIndexDao seekIndexDao = mDatabase.seekIndexDao();
+        SeekIndexEntity stored =
+                resourceName != null ? seekIndexDao.get(resourceName, fingerprint) : null;
+        Mp3SeekIndex index;
+        if (stored != null) {
+            index = Mp3SeekIndex.decode(stored.sampleRate, stored.samplesPerFrame,
+                    stored.frameOffsets);
+        } else {
+            index = Mp3SeekIndex.build(media.buffer());
+            if (index == null) {
+                return null;
+            }
+            if (resourceName != null) {
+                final SeekIndexEntity entity = new SeekIndexEntity();
+                entity.resourceName = resourceName;
+                entity.fingerprint = fingerprint;
+                entity.sampleRate = index.getSampleRate();
+                entity.samplesPerFrame = index.getSamplesPerFrame();
+                entity.frameOffsets = index.encodeOffsets();
+                mDatabase.runInTransaction(() -> {
+                    seekIndexDao.deleteOutdated(entity.resourceName, entity.fingerprint);
+                    seekIndexDao.insert(entity);
+                });
+            }
+        }
+        synchronized (mRecent) {
+            mRecent.put(resourceId, new Entry(fingerprint, index));
+        }
+        return index;
+    }
+
+    private static final class Entry {
+
+        final long mFingerprint;
+        final Mp3SeekIndex mIndex;
+
+        Entry(long fingerprint, Mp3SeekIndex index) {
+            mFingerprint = fingerprint;
+            mIndex = index;
+        }
+    }
+}
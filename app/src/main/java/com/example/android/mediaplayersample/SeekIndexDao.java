@@ -0,0 +1,27 @@
+package com.example.android.mediaplayersample;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+
+/**
+ * Data access for the {@link SeekIndexEntity} table.
+ */
+@Dao
+interface SeekIndexDao {
+
+    @Query("SELECT * FROM seek_indexes WHERE resource_name = :resourceName"
+            + " AND fingerprint = :fingerprint")
+    SeekIndexEntity get(String resourceName, long fingerprint);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(SeekIndexEntity seekIndex);
+
+    /**
+     * Drops the indexes of earlier versions of a track.
+     */
+    @Query("DELETE FROM seek_indexes WHERE resource_name = :resourceName"
+            + " AND fingerprint != :fingerprint")
+    void deleteOutdated(String resourceName, long fingerprint);
+}
@@ -0,0 +1,33 @@
+package com.example.android.mediaplayersample;
+
+import android.arch.persistence.room.ColumnInfo;
+import android.arch.persistence.room.Entity;
+import android.support.annotation.NonNull;
+
+/**
+ * Stored {@link Mp3SeekIndex} of one version of a track, keyed like the {@link TrackEntity}
+ * it belongs to. Kept in a table of its own so that loading the library doesn't read the
+ * offsets too.
+ */
+@Entity(tableName = "seek_indexes", primaryKeys = {"resource_name", "fingerprint"})
+class SeekIndexEntity {
+
+    @NonNull
+    @ColumnInfo(name = "resource_name")
+    public String resourceName = "";
+
+    @ColumnInfo(name = "fingerprint")
+    public long fingerprint;
+
+    @ColumnInfo(name = "sample_rate")
+    public int sampleRate;
+
+    @ColumnInfo(name = "samples_per_frame")
+    public int samplesPerFrame;
+
+    /**
+     * See {@link Mp3SeekIndex#encodeOffsets()}.
+     */
+    @ColumnInfo(name = "frame_offsets")
+    public byte[] frameOffsets;
+}
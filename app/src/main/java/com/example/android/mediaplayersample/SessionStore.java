@@ -0,0 +1,181 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the playback session, the play queue and the track and position it was at, in a
+ * single record of {@link #RECORD_BYTES} in the files directory, so it survives the process
+ * being killed and can be read back before the library is loaded.
+ * <p>
+ * {@link #save(Session)} only encodes the record; a background thread writes it through an
+ * {@link AtomicFile}, so a crash mid-write leaves the previous record in place. Checkpoints
+ * that come faster than the disk are coalesced, only the latest one is written.
+ */
+final class SessionStore {
+
+    private static final String TAG = "SessionStore";
+    private static final String FILE_NAME = "session";
+    private static final int RECORD_MAGIC = 0x53455331; // "SES1"
+    // Longer track names, deep file paths, are not resumed; the queue still is.
+    private static final int MAX_NAME_BYTES = 1024;
+    // The magic and seven other ints, the shuffle seed, the name length and the name.
+    private static final int RECORD_BYTES = 8 * 4 + 8 + 2 + MAX_NAME_BYTES;
+    private static volatile SessionStore sInstance;
+
+    private final AtomicFile mFile;
+    private final AtomicReference<byte[]> mPending = new AtomicReference<>();
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SessionWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * What is checkpointed. The rows refer to the library as it was loaded when saving.
+     */
+    static final class Session {
+
+        @PlayQueue.Mode
+        int playMode = PlayQueue.Mode.REPEAT_ALL;
+        int currentSong;
+        int trackCount;
+        long shuffleSeed;
+        int shuffleCycle;
+        int shuffleCycleStart = ShuffleEngine.NO_TRACK;
+        int shufflePosition;
+        String resourceName; // of the current song, null if unknown
+        int positionMs;
+    }
+
+    private SessionStore(Context context) {
+        mFile = new AtomicFile(new File(context.getApplicationContext().getFilesDir(),
+                FILE_NAME));
+    }
+
+    static SessionStore getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (SessionStore.class) {
+                if (sInstance == null) {
+                    sInstance = new SessionStore(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads the last saved session. Reading one small record is cheap enough for the main
+     * thread, where it is needed before the first frame.
+     *
+     * @return the session, or {@code null} if none was saved or it can't be read
+     */
+    Session load() {
+        File file = mFile.getBaseFile();
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] record = new byte[RECORD_BYTES];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < record.length) {
+                int count = in.read(record, read, record.length - read);
+                if (count < 0) {
+                    throw new IOException("truncated session record");
+                }
+                read += count;
+            }
+            return decode(ByteBuffer.wrap(record));
+        } catch (IOException e) {
+            Log.w(TAG, "discarding unreadable " + file, e);
+            mFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Saves {@code session} in the background, replacing the previous record.
+     */
+    void save(Session session) {
+        if (mPending.getAndSet(encode(session)) == null) {
+            mWriter.execute(this::writePending);
+        }
+    }
+
+    private void writePending() {
+        byte[] record = mPending.getAndSet(null);
+        if (record == null) {
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(record);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to save the session", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static byte[] encode(Session session) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        record.putInt(RECORD_MAGIC)
+                .putInt(session.playMode)
+                .putInt(session.currentSong)
+                .putInt(session.trackCount)
+                .putLong(session.shuffleSeed)
+                .putInt(session.shuffleCycle)
+                .putInt(session.shuffleCycleStart)
+                .putInt(session.shufflePosition)
+                .putInt(session.positionMs);
+        byte[] name = session.resourceName == null
+                ? new byte[0] : session.resourceName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES) {
+            name = new byte[0];
+        }
+        record.putShort((short) name.length).put(name);
+        return record.array();
+    }
+
+    @VisibleForTesting
+    static Session decode(ByteBuffer record) throws IOException {
+        if (record.getInt() != RECORD_MAGIC) {
+            throw new IOException("not a session record");
+        }
+        Session session = new Session();
+        //noinspection WrongConstant
+        session.playMode = record.getInt();
+        session.currentSong = record.getInt();
+        session.trackCount = record.getInt();
+        session.shuffleSeed = record.getLong();
+        session.shuffleCycle = record.getInt();
+        session.shuffleCycleStart = record.getInt();
+        session.shufflePosition = record.getInt();
+        session.positionMs = record.getInt();
+        int nameLength = record.getShort();
+        if (nameLength < 0 || nameLength > MAX_NAME_BYTES) {
+            throw new IOException("bad track name length " + nameLength);
+        }
+        if (nameLength > 0) {
+            session.resourceName = new String(record.array(), record.position(), nameLength,
+                    StandardCharsets.UTF_8);
+        }
+        return session;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.mediaplayersample;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Walks the tracks in random order without repeats. Each cycle is a permutation of all tracks,
+ * generated one step at a time with Fisher-Yates as the walk reaches it, so moving forward or
+ * back is O(1) and nothing is drawn for tracks that never get played. When a cycle ends the next
+ * one is a fresh permutation, which never starts with the track that ended the previous one.
+ * <p>
+ * Every permutation is derived from the seed, the cycle number and the cycle's first track, so
+ * {@link #restore(int, int, int)} with the values read from the getters reproduces the walk
+ * exactly, provided the track count is the same. Plain Java, so it can be benchmarked
+ * off-device.
+ */
+final class ShuffleEngine {
+
+    static final int NO_TRACK = -1;
+
+    private final long mSeed;
+    private int[] mOrder = new int[0];
+    private int mTrackCount;
+    private int mGenerated; // mOrder[0, mGenerated) is fixed for this cycle, the rest is the pool
+    private int mPosition;
+    private int mCycle;
+    private int mCycleStart = NO_TRACK;
+    private Random mRandom;
+
+    ShuffleEngine(long seed) {
+        mSeed = seed;
+    }
+
+    long getSeed() {
+        return mSeed;
+    }
+
+    int getCycle() {
+        return mCycle;
+    }
+
+    int getCycleStart() {
+        return mCycleStart;
+    }
+
+    int getPosition() {
+        return mPosition;
+    }
+
+    int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * Adds tracks to the walk. New tracks join the part of the cycle that hasn't been played.
+     */
+    void setTrackCount(int trackCount) {
+        if (trackCount <= mTrackCount) {
+            return;
+        }
+        if (trackCount > mOrder.length) {
+            mOrder = Arrays.copyOf(mOrder, Math.max(trackCount, mOrder.length * 2));
+        }
+        for (int track = mTrackCount; track < trackCount; track++) {
+            mOrder[track] = track;
+        }
+        mTrackCount = trackCount;
+        if (mCycleStart == NO_TRACK) {
+            startCycle(0, new Random(mix(0, 1)).nextInt(trackCount));
+        }
+    }
+
+    /**
+     * Replaces the tracks after the library changed, as rows may have moved or gone. Starts a
+     * new cycle with {@code current}, the row the current track has now.
+     */
+    void resetTracks(int trackCount, int current) {
+        if (trackCount > mOrder.length) {
+            mOrder = Arrays.copyOf(mOrder, Math.max(trackCount, mOrder.length * 2));
+        }
+        mTrackCount = trackCount;
+        if (trackCount == 0) {
+            mCycleStart = NO_TRACK;
+            mPosition = 0;
+        } else {
+            startCycle(mCycle + 1, current >= 0 && current < trackCount ? current : 0);
+        }
+    }
+
+    int getCurrent() {
+        return mTrackCount == 0 ? NO_TRACK : mOrder[mPosition];
+    }
+
+    /**
+     * Starts a new cycle with {@code track}, as when the user picks it.
+     */
+    void setCurrent(int track) {
+        if (track >= 0 && track < mTrackCount && track != getCurrent()) {
+            startCycle(mCycle + 1, track);
+        }
+    }
+
+    /**
+     * Returns the track {@code ahead} steps forward without moving. Only the first track of the
+     * next cycle can be seen from the current one, {@link #NO_TRACK} is returned beyond it.
+     */
+    int peekNext(int ahead) {
+        if (mTrackCount == 0) {
+            return NO_TRACK;
+        }
+        int position = mPosition + ahead;
+        if (position < mTrackCount) {
+            generateThrough(position);
+            return mOrder[position];
+        }
+        return position == mTrackCount ? nextCycleStart() : NO_TRACK;
+    }
+
+    int moveToNext() {
+        if (mTrackCount == 0) {
+            return NO_TRACK;
+        }
+        if (mPosition + 1 == mTrackCount) {
+            startCycle(mCycle + 1, nextCycleStart());
+        } else {
+            generateThrough(++mPosition);
+        }
+        return mOrder[mPosition];
+    }
+
+    /**
+     * Steps back within the current cycle; at its start there is nothing to go back to.
+     */
+    int moveToPrevious() {
+        if (mTrackCount == 0 || mPosition == 0) {
+            return NO_TRACK;
+        }
+        return mOrder[--mPosition];
+    }
+
+    /**
+     * Recreates the walk saved from the getters, once the tracks have been added.
+     */
+    void restore(int cycle, int cycleStart, int position) {
+        if (cycleStart < 0 || cycleStart >= mTrackCount || position < 0
+                || position >= mTrackCount) {
+            return;
+        }
+        startCycle(cycle, cycleStart);
+        generateThrough(position);
+        mPosition = position;
+    }
+
+    private void startCycle(int cycle, int cycleStart) {
+        for (int track = 0; track < mTrackCount; track++) {
+            mOrder[track] = track;
+        }
+        mCycle = cycle;
+        mCycleStart = cycleStart;
+        mRandom = new Random(mix(cycle, 0));
+        mOrder[0] = cycleStart;
+        mOrder[cycleStart] = 0;
+        mGenerated = 1;
+        mPosition = 0;
+    }
+
+    /**
+     * One Fisher-Yates step per position: draws the track at each position up to
+     * {@code position} from the pool of tracks not placed yet.
+     */
+    private void generateThrough(int position) {
+        while (mGenerated <= position) {
+            int pick = mGenerated + mRandom.nextInt(mTrackCount - mGenerated);
+            int track = mOrder[pick];
+            mOrder[pick] = mOrder[mGenerated];
+            mOrder[mGenerated++] = track;
+        }
+    }
+
+    private int nextCycleStart() {
+        generateThrough(mTrackCount - 1);
+        int last = mOrder[mTrackCount - 1];
+        if (mTrackCount == 1) {
+            return last;
+        }
+        int start = new Random(mix(mCycle + 1, 1)).nextInt(mTrackCount - 1);
+        return start >= last ? start + 1 : start;
+    }
+
+    private long mix(int cycle, int stream) {
+        return mSeed ^ (cycle * 0x9E3779B97F4A7C15L + stream);
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.android.mediaplayersample;
+
+/**
+ * A list row that shows one song, implemented by the {@link SongsAdapter} view holder. The
+ * duration is passed unformatted so the row can format it into a buffer of its own.
+ */
+interface SongRow {
+
+    void bind(CharSequence title, CharSequence author, int durationMs);
+}
@@ -0,0 +1,51 @@
+package com.example.android.mediaplayersample;
+
+/**
+ * Fills {@link SongRow}s from the {@link TrackTable}. Kept apart from {@link SongsAdapter} so
+ * binding can be benchmarked without Android views.
+ * <p>
+ * Shows every row of the table, or only the rows of a filter such as search results, in the
+ * filter's order. Positions are then translated to table rows with {@link #getRow(int)}.
+ */
+final class SongRowBinder {
+
+    private TrackTable mTracks;
+    private int[] mRows; // null when nothing is filtered out
+
+    SongRowBinder(TrackTable tracks) {
+        mTracks = tracks;
+    }
+
+    TrackTable getTracks() {
+        return mTracks;
+    }
+
+    void setTracks(TrackTable tracks) {
+        mTracks = tracks;
+    }
+
+    int[] getRows() {
+        return mRows;
+    }
+
+    /**
+     * @param rows rows of the table to show, {@code null} to show all of them
+     */
+    void setRows(int[] rows) {
+        mRows = rows;
+    }
+
+    int getRow(int position) {
+        return mRows == null ? position : mRows[position];
+    }
+
+    void bind(int position, SongRow row) {
+        int track = getRow(position);
+        row.bind(mTracks.getTitle(track), mTracks.getArtist(track),
+                mTracks.getDurationMs(track));
+    }
+
+    int getCount() {
+        return mRows == null ? mTracks.size() : mRows.length;
+    }
+}
@@ -1,60 +1,193 @@
 package com.example.android.mediaplayersample;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Shows an immutable {@link TrackTable} snapshot. Rows are read straight from the table's
+ * columns when they scroll into view, so only the visible rows ever exist as views and strings.
+ * <p>
+ * New snapshots are passed to {@link #submitTracks(TrackTable)}. When one only appends rows to
+ * the shown one, the new rows are inserted right away; otherwise the difference is computed with
+ * {@link DiffUtil} on a background thread and applied as individual item updates.
+ * <p>
+ * {@link #setFilter(int[])} narrows the list down to some rows of the table, such as search
+ * results. {@link OnPlay} is always given the table row of the clicked song.
+ * <p>
+ * Each row asks the {@link ArtworkCache} for its artwork when it is bound, and cancels the
+ * request when it is recycled, so rows that only flew past during a fling are never decoded.
+ */
 class SongsAdapter extends RecyclerView.Adapter <SongsAdapter.SongViewHolder>{
 
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SongsDiff");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private OnPlay onPlay;
     private LayoutInflater layoutInflater;
-    private String [] songTitles;
-    private String [] songAuthors;
-    private String []songDurations;
-    private static Context context;
+    private SongRowBinder songRowBinder;
+    private final ArtworkCache artworkCache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int submitGeneration; // a diff is only applied if nothing was submitted since
+    private TrackTable submittedTracks; // the latest tracks, a diff may still be pending
 
-    SongsAdapter(Context context, String [] songTitles,
-                 String [] songAuthors, String [] songDurations){
+    SongsAdapter(Context context, TrackTable tracks){
         layoutInflater=LayoutInflater.from(context);
-        this.songTitles = songTitles;
-        this.songAuthors = songAuthors;
-        this.songDurations = songDurations;
-        this.context = context;
+        this.songRowBinder = new SongRowBinder(tracks);
+        this.submittedTracks = tracks;
+        this.artworkCache = ArtworkCache.getInstance(context);
+    }
+
+    /**
+     * Replaces the shown tracks. {@code tracks} must not change afterwards, pass a
+     * {@link TrackTable#snapshot()} of a table that is still being filled.
+     */
+    void submitTracks(final TrackTable tracks) {
+        final int generation = ++submitGeneration;
+        final TrackTable shown = songRowBinder.getTracks();
+        submittedTracks = tracks;
+        if (songRowBinder.getRows() != null) {
+            // The filtered rows stay as they are until the next filter is set, unless they
+            // belong to a table that was replaced.
+            songRowBinder.setTracks(tracks);
+            if (!tracks.isExtensionOf(shown)) {
+                songRowBinder.setRows(null);
+                notifyDataSetChanged();
+            }
+            return;
+        }
+        if (tracks.isExtensionOf(shown)) {
+            int start = shown.size();
+            songRowBinder.setTracks(tracks);
+            if (tracks.size() > start) {
+                notifyItemRangeInserted(start, tracks.size() - start);
+            }
+            return;
+        }
+        sDiffExecutor.execute(() -> {
+            final DiffUtil.DiffResult diff =
+                    DiffUtil.calculateDiff(new TrackDiffCallback(shown, tracks));
+            mainHandler.post(() -> {
+                if (generation == submitGeneration) {
+                    songRowBinder.setTracks(tracks);
+                    diff.dispatchUpdatesTo(this);
+                }
+            });
+        });
     }
 
+    /**
+     * Shows only {@code rows} of the latest submitted tracks, in that order, or all of them if
+     * {@code rows} is {@code null}.
+     */
+    void setFilter(int[] rows) {
+        ++submitGeneration; // a pending diff doesn't apply to the filtered list
+        songRowBinder.setTracks(submittedTracks);
+        songRowBinder.setRows(rows);
+        notifyDataSetChanged();
+    }
 
     @Override
     public SongViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View view = layoutInflater.inflate(R.layout.song_row, parent, false);
-        return new SongViewHolder(view);
+        final SongViewHolder holder = new SongViewHolder(view);
+        holder.playSong.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && onPlay != null) {
+                onPlay.onClick(songRowBinder.getRow(position));
+            }
+        });
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(SongViewHolder holder, final int position) {
-        holder.songTitle.setText(songTitles[position]);
-        holder.songAuthor.setText(songAuthors[position]);
-        holder.songDuration.setText(songDurations[position]);
-        holder.playSong.setOnClickListener(v -> onPlay.onClick(position));
+        songRowBinder.bind(position, holder);
+        String resourceName =
+                songRowBinder.getTracks().getResourceName(songRowBinder.getRow(position));
+        holder.bindArtwork(artworkCache, resourceName);
+    }
+
+    @Override
+    public void onViewRecycled(SongViewHolder holder) {
+        holder.unbindArtwork();
     }
 
     @Override
     public int getItemCount() {
-        return songTitles.length;
+        return songRowBinder.getCount();
     }
 
     void setOnPlay(OnPlay onPlay){
         this.onPlay= onPlay;
     }
 
-    static class SongViewHolder extends RecyclerView.ViewHolder{
+    /**
+     * Tracks are the same item when they come from the same resource.
+     */
+    private static final class TrackDiffCallback extends DiffUtil.Callback {
+
+        private final TrackTable mOld;
+        private final TrackTable mNew;
+
+        TrackDiffCallback(TrackTable oldTracks, TrackTable newTracks) {
+            mOld = oldTracks;
+            mNew = newTracks;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.getResourceName(oldPosition).equals(mNew.getResourceName(newPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return equal(mOld.getTitle(oldPosition), mNew.getTitle(newPosition))
+                    && equal(mOld.getArtist(oldPosition), mNew.getArtist(newPosition))
+                    && mOld.getDurationMs(oldPosition) == mNew.getDurationMs(newPosition);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    static class SongViewHolder extends RecyclerView.ViewHolder implements SongRow{
 
         private TextView songTitle, songAuthor, songDuration;
+        private ImageView songArtwork;
         private ImageButton playSong;
+        private ArtworkCache artworkCache;
+        private CompletableFuture<Bitmap> artworkRequest;
+        private Bitmap artwork; // shown, to be released to the cache
+        // Owned by this row: TextView keeps a reference to the chars it is given.
+        private final char[] durationChars = new char[DurationFormatter.MAX_LENGTH];
 
 
         SongViewHolder(View itemView) {
@@ -62,7 +195,38 @@ class SongsAdapter extends RecyclerView.Adapter <SongsAdapter.SongViewHolder>{
             songTitle    = itemView.findViewById(R.id.songTitle);
             songAuthor   = itemView.findViewById(R.id.songAuthor);
             songDuration = itemView.findViewById(R.id.songDuration);
+            songArtwork  = itemView.findViewById(R.id.songArtwork);
             playSong     = itemView.findViewById(R.id.play_selected);
         }
+
+        @Override
+        public void bind(CharSequence title, CharSequence author, int durationMs) {
+            songTitle.setText(title);
+            songAuthor.setText(author);
+            songDuration.setText(durationChars, 0,
+                    DurationFormatter.format(durationMs, durationChars));
+        }
+
+        void bindArtwork(ArtworkCache cache, String resourceName) {
+            unbindArtwork();
+            artworkCache = cache;
+            artworkRequest = cache.getArtwork(resourceName);
+            artworkRequest.thenAccept(thumbnail -> {
+                artwork = thumbnail;
+                songArtwork.setImageBitmap(thumbnail);
+            });
+        }
+
+        void unbindArtwork() {
+            if (artworkRequest != null) {
+                artworkRequest.cancel(false);
+                artworkRequest = null;
+            }
+            songArtwork.setImageDrawable(null);
+            if (artwork != null) {
+                artworkCache.release(artwork);
+                artwork = null;
+            }
+        }
     }
 }
@@ -0,0 +1,152 @@
+package com.example.android.mediaplayersample;
+
+/**
+ * Turns blocks of 8-bit waveform, as captured by {@link android.media.audiofx.Visualizer},
+ * into the levels of logarithmically spaced frequency bands, for a spectrum display. Plain
+ * Java, so it can be benchmarked off-device.
+ * <p>
+ * Every buffer, the window, the twiddle factors and the band edges are allocated up front;
+ * {@link #analyze(byte[], float)} is called once per display frame and allocates nothing.
+ * Levels rise at once and fall back exponentially, so bars don't flicker between frames.
+ */
+final class SpectrumAnalyzer {
+
+    private static final float MIN_FREQUENCY_HZ = 40f;
+    private static final float FLOOR_DB = -60f; // shown as an empty band
+    private static final float RELEASE_SECONDS = 0.15f; // time for a level to fall to 1/e
+
+    private final int mSize;
+    private final float[] mWindow;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mBitReverse;
+    private final float[] mReal;
+    private final float[] mImag;
+    private final int[] mBandEdges; // band i spans bins [mBandEdges[i], mBandEdges[i + 1])
+    private final float[] mLevels;
+    private final float mPowerScale;
+
+    /**
+     * @param captureSize samples per block, a power of two
+     * @param sampleRateHz the sample rate of the captured audio
+     * @param bandCount the number of bands to aggregate the spectrum into
+     */
+    SpectrumAnalyzer(int captureSize, int sampleRateHz, int bandCount) {
+        if (captureSize < 2 || Integer.bitCount(captureSize) != 1) {
+            throw new IllegalArgumentException("capture size " + captureSize);
+        }
+        mSize = captureSize;
+        mWindow = new float[captureSize];
+        mCos = new float[captureSize / 2];
+        mSin = new float[captureSize / 2];
+        mBitReverse = new int[captureSize];
+        mReal = new float[captureSize];
+        mImag = new float[captureSize];
+        mBandEdges = new int[bandCount + 1];
+        mLevels = new float[bandCount];
+
+        // A Hann window halves a sine's amplitude and the real input splits it between two
+        // bins, so a full-scale sine peaks at captureSize / 4.
+        mPowerScale = 16f / ((float) captureSize * captureSize);
+        int bits = Integer.numberOfTrailingZeros(captureSize);
+        for (int i = 0; i < captureSize; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / captureSize));
+            mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        for (int i = 0; i < captureSize / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / captureSize);
+            mSin[i] = (float) Math.sin(2 * Math.PI * i / captureSize);
+        }
+        layoutBands(sampleRateHz);
+    }
+
+    int getBandCount() {
+        return mLevels.length;
+    }
+
+    /**
+     * The level of each band from 0 to 1, as of the last {@link #analyze(byte[], float)}. The
+     * array is reused by the next call.
+     */
+    float[] getLevels() {
+        return mLevels;
+    }
+
+    /**
+     * Analyzes the next block.
+     *
+     * @param waveform unsigned 8-bit samples centered on 128, {@code captureSize} of them
+     * @param elapsedSeconds the time since the previous block, for the release of the levels
+     * @return whether any band is above the floor
+     */
+    boolean analyze(byte[] waveform, float elapsedSeconds) {
+        for (int i = 0; i < mSize; i++) {
+            int j = mBitReverse[i];
+            mReal[j] = ((waveform[i] & 0xff) - 128) / 128f * mWindow[i];
+            mImag[j] = 0f;
+        }
+        transform();
+
+        float release = (float) Math.exp(-elapsedSeconds / RELEASE_SECONDS);
+        boolean audible = false;
+        for (int band = 0; band < mLevels.length; band++) {
+            float power = 0f;
+            for (int bin = mBandEdges[band]; bin < mBandEdges[band + 1]; bin++) {
+                power += mReal[bin] * mReal[bin] + mImag[bin] * mImag[bin];
+            }
+            float level = 0f;
+            if (power > 0f) {
+                float db = 10f * (float) Math.log10(power * mPowerScale);
+                level = Math.max(0f, Math.min(1f, 1f - db / FLOOR_DB));
+            }
+            float released = mLevels[band] * release;
+            mLevels[band] = level > released ? level : released < 1e-3f ? 0f : released;
+            audible |= mLevels[band] > 0f;
+        }
+        return audible;
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of the bit-reversed block in {@link #mReal} and
+     * {@link #mImag}.
+     */
+    private void transform() {
+        for (int span = 2; span <= mSize; span <<= 1) {
+            int half = span >> 1;
+            int stride = mSize / span;
+            for (int start = 0; start < mSize; start += span) {
+                for (int k = 0, twiddle = 0; k < half; k++, twiddle += stride) {
+                    float cos = mCos[twiddle];
+                    float sin = mSin[twiddle];
+                    int a = start + k;
+                    int b = a + half;
+                    float real = mReal[b] * cos + mImag[b] * sin;
+                    float imag = mImag[b] * cos - mReal[b] * sin;
+                    mReal[b] = mReal[a] - real;
+                    mImag[b] = mImag[a] - imag;
+                    mReal[a] += real;
+                    mImag[a] += imag;
+                }
+            }
+        }
+    }
+
+    /**
+     * Spaces the band edges evenly on a log scale from {@link #MIN_FREQUENCY_HZ} to the
+     * Nyquist frequency, giving each band at least one bin. Where the low bands are narrower
+     * than a bin they are widened, pushing the later edges up.
+     */
+    private void layoutBands(int sampleRateHz) {
+        int bands = mLevels.length;
+        int lastBin = mSize / 2; // the Nyquist bin, included
+        float nyquist = sampleRateHz / 2f;
+        float ratio = nyquist / MIN_FREQUENCY_HZ;
+        mBandEdges[0] = Math.max(1, Math.round(MIN_FREQUENCY_HZ * mSize / sampleRateHz));
+        for (int i = 1; i <= bands; i++) {
+            double hz = MIN_FREQUENCY_HZ * Math.pow(ratio, (double) i / bands);
+            int edge = (int) Math.round(hz * mSize / sampleRateHz);
+            mBandEdges[i] = Math.min(lastBin + 1, Math.max(mBandEdges[i - 1] + 1, edge));
+        }
+        mBandEdges[bands] = lastBin + 1;
+    }
+}
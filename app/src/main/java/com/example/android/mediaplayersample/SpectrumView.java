@@ -0,0 +1,179 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.media.audiofx.Visualizer;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+
+/**
+ * Shows the spectrum of what plays in an audio session as bars, one per
+ * {@link SpectrumAnalyzer} band, updated every display frame.
+ * <p>
+ * Audio is only captured while the view is shown. Each frame polls the {@link Visualizer} into
+ * the same waveform buffer instead of using its capture listener, which allocates a new array
+ * per capture and delivers at its own rate. While nothing is audible the view stops drawing
+ * and polls {@link #IDLE_POLL_MS} apart. The time spent per frame is recorded as
+ * {@link PlaybackTelemetry.Timer#VISUALIZER_FRAME}.
+ */
+public final class SpectrumView extends View implements Choreographer.FrameCallback {
+
+    private static final String TAG = "SpectrumView";
+    private static final int NO_SESSION = -1;
+    private static final int BAND_COUNT = 32;
+    private static final int MAX_CAPTURE_SIZE = 1024;
+    private static final long IDLE_POLL_MS = 100;
+    private static final float BAR_GAP_DP = 2f;
+
+    private final PlaybackTelemetry mTelemetry = PlaybackTelemetry.getInstance();
+    private final Paint mBarPaint = new Paint();
+    private final float mBarGap;
+    private int mAudioSessionId = NO_SESSION;
+    private boolean mShown;
+    private Visualizer mVisualizer;
+    private SpectrumAnalyzer mAnalyzer;
+    private int mSampleRateHz;
+    private byte[] mWaveform;
+    private boolean mAudible;
+    private long mLastFrameNanos;
+    private long mAnalysisNanos = -1; // of the frame waiting to be drawn
+
+    public SpectrumView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mBarGap = BAR_GAP_DP * getResources().getDisplayMetrics().density;
+        mBarPaint.setColor(ContextCompat.getColor(context, R.color.spectrumBar));
+    }
+
+    /**
+     * Shows the audio session {@code audioSessionId}, see
+     * {@link PlayerAdapter#getAudioSessionId()}.
+     */
+    void setAudioSessionId(int audioSessionId) {
+        if (audioSessionId == mAudioSessionId) {
+            return;
+        }
+        stopCapture();
+        mAudioSessionId = audioSessionId;
+        updateCapture();
+    }
+
+    @Override
+    public void onVisibilityAggregated(boolean isVisible) {
+        super.onVisibilityAggregated(isVisible);
+        mShown = isVisible;
+        updateCapture();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mShown = false;
+        updateCapture();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mVisualizer == null) {
+            return;
+        }
+        long start = mTelemetry.start();
+        float elapsedSeconds = mLastFrameNanos == 0
+                ? 0f : (frameTimeNanos - mLastFrameNanos) / 1e9f;
+        mLastFrameNanos = frameTimeNanos;
+        boolean audible = mVisualizer.getWaveForm(mWaveform) == Visualizer.SUCCESS
+                && mAnalyzer.analyze(mWaveform, elapsedSeconds);
+        if (audible || mAudible) {
+            // The frame is recorded once drawn, with the analysis counted in.
+            mAnalysisNanos = mTelemetry.start() - start;
+            invalidate();
+        } else {
+            mTelemetry.record(PlaybackTelemetry.Timer.VISUALIZER_FRAME, start);
+        }
+        mAudible = audible;
+        if (audible) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            Choreographer.getInstance().postFrameCallbackDelayed(this, IDLE_POLL_MS);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        long start = mTelemetry.start();
+        if (mAnalyzer != null) {
+            float[] levels = mAnalyzer.getLevels();
+            int left = getPaddingLeft();
+            int width = getWidth() - left - getPaddingRight();
+            int height = getHeight() - getPaddingTop() - getPaddingBottom();
+            float bottom = getHeight() - getPaddingBottom();
+            float step = (float) width / levels.length;
+            float barWidth = Math.max(1f, step - mBarGap);
+            for (int i = 0; i < levels.length; i++) {
+                if (levels[i] > 0f) {
+                    float x = left + i * step;
+                    canvas.drawRect(x, bottom - levels[i] * height, x + barWidth, bottom,
+                            mBarPaint);
+                }
+            }
+        }
+        if (mAnalysisNanos >= 0) {
+            mTelemetry.record(PlaybackTelemetry.Timer.VISUALIZER_FRAME, start - mAnalysisNanos);
+            mAnalysisNanos = -1;
+        }
+    }
+
+    private void updateCapture() {
+        boolean wanted = mShown && mAudioSessionId != NO_SESSION;
+        if (wanted && mVisualizer == null) {
+            startCapture();
+        } else if (!wanted) {
+            stopCapture();
+        }
+    }
+
+    private void startCapture() {
+        Visualizer visualizer = null;
+        try {
+            visualizer = new Visualizer(mAudioSessionId);
+            int captureSize = Math.min(MAX_CAPTURE_SIZE, Visualizer.getCaptureSizeRange()[1]);
+            visualizer.setCaptureSize(captureSize);
+            visualizer.setEnabled(true);
+            int sampleRateHz = visualizer.getSamplingRate() / 1000; // reported in mHz
+            if (mAnalyzer == null || mWaveform.length != captureSize
+                    || mSampleRateHz != sampleRateHz) {
+                mAnalyzer = new SpectrumAnalyzer(captureSize, sampleRateHz, BAND_COUNT);
+                mWaveform = new byte[captureSize];
+                mSampleRateHz = sampleRateHz;
+            }
+        } catch (RuntimeException e) {
+            // No RECORD_AUDIO permission, or the session is gone.
+            Log.w(TAG, "unable to capture audio session " + mAudioSessionId, e);
+            if (visualizer != null) {
+                visualizer.release();
+            }
+            return;
+        }
+        mVisualizer = visualizer;
+        mAudible = true; // draw at least once, levels may be left from the last capture
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void stopCapture() {
+        if (mVisualizer == null) {
+            return;
+        }
+        Choreographer.getInstance().removeFrameCallback(this);
+        mVisualizer.release();
+        mVisualizer = null;
+        mAnalysisNanos = -1;
+    }
+}
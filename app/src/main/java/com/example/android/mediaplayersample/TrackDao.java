@@ -0,0 +1,45 @@
+package com.example.android.mediaplayersample;
+
+import android.arch.persistence.room.Dao;
+import android.arch.persistence.room.Delete;
+import android.arch.persistence.room.Insert;
+import android.arch.persistence.room.OnConflictStrategy;
+import android.arch.persistence.room.Query;
+
+import java.util.List;
+
+/**
+ * Data access for the {@link TrackEntity} index.
+ */
+@Dao
+interface TrackDao {
+
+    /**
+     * Rows of the tracks bundled as raw resources.
+     */
+    @Query("SELECT * FROM tracks WHERE resource_name NOT LIKE '/%'")
+    List<TrackEntity> getResourceTracks();
+
+    /**
+     * Rows of the tracks found on external storage, named by their absolute path.
+     */
+    @Query("SELECT * FROM tracks WHERE resource_name LIKE '/%'")
+    List<TrackEntity> getFileTracks();
+
+    @Query("SELECT resource_name, fingerprint, loudness_lufs, peak FROM tracks"
+            + " WHERE loudness_lufs IS NOT NULL")
+    List<TrackLoudness> getAnalyzedLoudness();
+
+    /**
+     * @return the number of rows updated, 0 if the track isn't indexed yet
+     */
+    @Query("UPDATE tracks SET loudness_lufs = :loudnessLufs, peak = :peak"
+            + " WHERE resource_name = :resourceName AND fingerprint = :fingerprint")
+    int updateLoudness(String resourceName, long fingerprint, float loudnessLufs, float peak);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAll(List<TrackEntity> tracks);
+
+    @Delete
+    void deleteAll(List<TrackEntity> tracks);
+}
@@ -0,0 +1,58 @@
+package com.example.android.mediaplayersample;
+
+import android.arch.persistence.db.SupportSQLiteDatabase;
+import android.arch.persistence.room.Database;
+import android.arch.persistence.room.Room;
+import android.arch.persistence.room.RoomDatabase;
+import android.arch.persistence.room.migration.Migration;
+import android.content.Context;
+
+/**
+ * Room database holding the persistent track-metadata index and the seek indexes of the
+ * tracks. There is one instance per process.
+ */
+@Database(entities = {TrackEntity.class, SeekIndexEntity.class}, version = 3,
+        exportSchema = false)
+abstract class TrackDatabase extends RoomDatabase {
+
+    private static final String DATABASE_NAME = "tracks.db";
+    private static volatile TrackDatabase sInstance;
+
+    // Version 2 added the loudness columns, existing tracks get analyzed again in the background.
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE tracks ADD COLUMN loudness_lufs REAL");
+            database.execSQL("ALTER TABLE tracks ADD COLUMN peak REAL");
+        }
+    };
+
+    // Version 3 added the seek indexes, they are built again as tracks are played.
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `seek_indexes` ("
+                    + "`resource_name` TEXT NOT NULL, `fingerprint` INTEGER NOT NULL,"
+                    + " `sample_rate` INTEGER NOT NULL, `samples_per_frame` INTEGER NOT NULL,"
+                    + " `frame_offsets` BLOB, PRIMARY KEY(`resource_name`, `fingerprint`))");
+        }
+    };
+
+    abstract TrackDao trackDao();
+
+    abstract SeekIndexDao seekIndexDao();
+
+    static TrackDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (TrackDatabase.class) {
+                if (sInstance == null) {
+                    sInstance = Room.databaseBuilder(context.getApplicationContext(),
+                            TrackDatabase.class, DATABASE_NAME)
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
+                            .build();
+                }
+            }
+        }
+        return sInstance;
+    }
+}
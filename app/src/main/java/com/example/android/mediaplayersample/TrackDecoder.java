@@ -0,0 +1,111 @@
+package com.example.android.mediaplayersample;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decoding steps shared by playback and offline analysis. {@link #decode(MappedMedia,
+ * PcmConsumer)} runs a whole track through {@link MediaCodec} as fast as possible, for work
+ * that needs every sample but doesn't play them.
+ */
+final class TrackDecoder {
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    private TrackDecoder() {
+    }
+
+    /**
+     * Selects the first audio track of {@code extractor} and returns its format.
+     *
+     * @throws IOException if the media has no audio track
+     */
+    static MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new IOException("no audio track");
+    }
+
+    /**
+     * Decodes all of {@code media} on the calling thread and hands the PCM to {@code consumer}.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted
+     */
+    static void decode(MappedMedia media, PcmConsumer consumer) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(media.newDataSource());
+            MediaFormat format = selectAudioTrack(extractor);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            consumer.onFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("decoding interrupted");
+                }
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(inputIndex);
+                        int size = extractor.readSampleData(input, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size,
+                                    extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    consumer.onFormat(outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                    continue;
+                }
+                if (outputIndex < 0) {
+                    continue;
+                }
+                ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                if (output != null && info.size > 0) {
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    consumer.onSamples(output.slice().order(ByteOrder.nativeOrder())
+                            .asShortBuffer());
+                }
+                codec.releaseOutputBuffer(outputIndex, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("decoder failed", e);
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+}
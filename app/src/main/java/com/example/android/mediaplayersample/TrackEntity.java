@@ -0,0 +1,37 @@
+package com.example.android.mediaplayersample;
+
+import android.arch.persistence.room.ColumnInfo;
+import android.arch.persistence.room.Entity;
+import android.support.annotation.NonNull;
+
+/**
+ * Row of the persistent track-metadata index. A track is identified by the name of its raw
+ * resource together with a fingerprint of its content, so a changed file never matches a stale
+ * row. Loudness columns stay {@code null} until the track has been analyzed, see
+ * {@link LoudnessIndex}.
+ */
+@Entity(tableName = "tracks", primaryKeys = {"resource_name", "fingerprint"})
+class TrackEntity {
+
+    @NonNull
+    @ColumnInfo(name = "resource_name")
+    public String resourceName = "";
+
+    @ColumnInfo(name = "fingerprint")
+    public long fingerprint;
+
+    @ColumnInfo(name = "title")
+    public String title;
+
+    @ColumnInfo(name = "artist")
+    public String artist;
+
+    @ColumnInfo(name = "duration_ms")
+    public int durationMs;
+
+    @ColumnInfo(name = "loudness_lufs")
+    public Float loudnessLufs;
+
+    @ColumnInfo(name = "peak")
+    public Float peak;
+}
@@ -0,0 +1,64 @@
+package com.example.android.mediaplayersample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reconciles the persistent track index with the tracks found by a scan: an indexed entry is
+ * reused when its fingerprint still matches, anything else goes through the
+ * {@link MetadataExtractor}. Safe to share between scan workers, and free of Android
+ * dependencies so the load path can be benchmarked with a fake extractor.
+ */
+final class TrackIndexMerger {
+
+    /**
+     * Reads the metadata of a single track.
+     */
+    interface MetadataExtractor {
+
+        TrackEntity extract(String resourceName, long fingerprint);
+    }
+
+    private final Map<String, TrackEntity> mIndexed = new ConcurrentHashMap<>();
+    private final List<TrackEntity> mExtracted = Collections.synchronizedList(new ArrayList<>());
+    private final List<TrackEntity> mStale = Collections.synchronizedList(new ArrayList<>());
+
+    TrackIndexMerger(List<TrackEntity> indexed) {
+        for (TrackEntity track : indexed) {
+            mIndexed.put(track.resourceName, track);
+        }
+    }
+
+    TrackEntity resolve(String resourceName, long fingerprint, MetadataExtractor extractor) {
+        TrackEntity track = mIndexed.remove(resourceName);
+        if (track != null && track.fingerprint != fingerprint) {
+            mStale.add(track);
+            track = null;
+        }
+        if (track == null) {
+            track = extractor.extract(resourceName, fingerprint);
+            mExtracted.add(track);
+        }
+        return track;
+    }
+
+    /**
+     * Tracks that were read from scratch and need to be written to the index.
+     */
+    List<TrackEntity> getExtracted() {
+        return mExtracted;
+    }
+
+    /**
+     * Index rows to delete. Call once every scanned track has been resolved: rows that were
+     * never asked for belong to tracks that no longer exist.
+     */
+    List<TrackEntity> finishStale() {
+        mStale.addAll(mIndexed.values());
+        mIndexed.clear();
+        return mStale;
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.android.mediaplayersample;
+
+import android.arch.persistence.room.ColumnInfo;
+
+/**
+ * Loudness of one analyzed track, as read from the {@link TrackEntity} index.
+ */
+class TrackLoudness {
+
+    @ColumnInfo(name = "resource_name")
+    public String resourceName;
+
+    @ColumnInfo(name = "fingerprint")
+    public long fingerprint;
+
+    @ColumnInfo(name = "loudness_lufs")
+    public float loudnessLufs;
+
+    @ColumnInfo(name = "peak")
+    public float peak;
+}
@@ -0,0 +1,148 @@
+package com.example.android.mediaplayersample;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact in-memory store of the library, one column per attribute instead of one object per
+ * track. Durations are kept as {@code int} milliseconds and formatted only when a row is shown,
+ * artists are stored once each and referenced by index, since most albums repeat the same one.
+ * Plain Java, so it can be benchmarked off-device.
+ * <p>
+ * The table is append-only: rows are never changed once added. {@link #snapshot()} takes an
+ * immutable view of the rows added so far in constant time, sharing the columns with the table,
+ * which can be handed to other threads while the table keeps growing. The table itself is not
+ * thread safe and is filled on the main thread.
+ */
+final class TrackTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_ARTIST = -1;
+
+    private String[] mResourceNames = new String[INITIAL_CAPACITY];
+    private String[] mTitles = new String[INITIAL_CAPACITY];
+    private int[] mArtistIds = new int[INITIAL_CAPACITY];
+    private int[] mDurationsMs = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    private String[] mArtists = new String[INITIAL_CAPACITY];
+    private int mArtistCount;
+    // Only the growing table has it, snapshots can't be appended to.
+    private final Map<String, Integer> mArtistIdsByName;
+    // Shared by a table and all of its snapshots.
+    private final Object mLineage;
+
+    TrackTable() {
+        mArtistIdsByName = new HashMap<>();
+        mLineage = new Object();
+    }
+
+    private TrackTable(TrackTable table) {
+        mResourceNames = table.mResourceNames;
+        mTitles = table.mTitles;
+        mArtistIds = table.mArtistIds;
+        mDurationsMs = table.mDurationsMs;
+        mSize = table.mSize;
+        mArtists = table.mArtists;
+        mArtistCount = table.mArtistCount;
+        mArtistIdsByName = null;
+        mLineage = table.mLineage;
+    }
+
+    /**
+     * Returns an immutable view of the rows added so far. Rows added afterwards are not part of
+     * it, and it stays valid however much the table grows.
+     */
+    TrackTable snapshot() {
+        return new TrackTable(this);
+    }
+
+    /**
+     * Whether this table holds all the rows of {@code other} at the same indexes, followed by
+     * zero or more rows that were appended later.
+     */
+    boolean isExtensionOf(TrackTable other) {
+        return mLineage == other.mLineage && mSize >= other.mSize;
+    }
+
+    /**
+     * Appends a track and returns its row index.
+     */
+    int add(TrackEntity track) {
+        return add(track.resourceName, track.title, track.artist, track.durationMs);
+    }
+
+    int add(String resourceName, String title, String artist, int durationMs) {
+        if (mArtistIdsByName == null) {
+            throw new IllegalStateException("Snapshots can't be appended to");
+        }
+        if (mSize == mTitles.length) {
+            grow();
+        }
+        mResourceNames[mSize] = resourceName;
+        mTitles[mSize] = title;
+        mArtistIds[mSize] = artistId(artist);
+        mDurationsMs[mSize] = durationMs;
+        return mSize++;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    String getResourceName(int row) {
+        return mResourceNames[checkRow(row)];
+    }
+
+    String getTitle(int row) {
+        return mTitles[checkRow(row)];
+    }
+
+    String getArtist(int row) {
+        int artistId = mArtistIds[checkRow(row)];
+        return artistId == NO_ARTIST ? null : mArtists[artistId];
+    }
+
+    int getDurationMs(int row) {
+        return mDurationsMs[checkRow(row)];
+    }
+
+    /**
+     * Number of distinct artists, i.e. how many artist strings the table holds.
+     */
+    int getArtistCount() {
+        return mArtistCount;
+    }
+
+    private int artistId(String artist) {
+        if (artist == null) {
+            return NO_ARTIST;
+        }
+        Integer artistId = mArtistIdsByName.get(artist);
+        if (artistId == null) {
+            if (mArtistCount == mArtists.length) {
+                mArtists = Arrays.copyOf(mArtists, mArtistCount * 2);
+            }
+            artistId = mArtistCount++;
+            mArtists[artistId] = artist;
+            mArtistIdsByName.put(artist, artistId);
+        }
+        return artistId;
+    }
+
+    private void grow() {
+        int capacity = mTitles.length * 2;
+        mResourceNames = Arrays.copyOf(mResourceNames, capacity);
+        mTitles = Arrays.copyOf(mTitles, capacity);
+        mArtistIds = Arrays.copyOf(mArtistIds, capacity);
+        mDurationsMs = Arrays.copyOf(mDurationsMs, capacity);
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + mSize);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.mediaplayersample;
+
+/**
+ * Peak amplitude of a track sampled at a fixed interval, as computed by
+ * {@link PeakDownsampler}. Immutable.
+ */
+final class Waveform {
+
+    private final int mIntervalMs;
+    private final byte[] mPeaks;
+
+    Waveform(int intervalMs, byte[] peaks) {
+        mIntervalMs = intervalMs;
+        mPeaks = peaks;
+    }
+
+    int getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    int size() {
+        return mPeaks.length;
+    }
+
+    /**
+     * Peak of interval {@code index}, from 0 for silence to 1 for full scale.
+     */
+    float getPeak(int index) {
+        return (mPeaks[index] & 0xFF) / 255f;
+    }
+
+    byte[] getPeaks() {
+        return mPeaks;
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Computes the {@link Waveform} of each track once and keeps it in a small binary file per
+ * track in the cache directory, named after the resource and its content fingerprint, so later
+ * launches read the peaks instead of decoding again.
+ * <p>
+ * The same decoding pass measures the track's loudness for the {@link LoudnessIndex}. A track
+ * is only decoded if its waveform file or its loudness is missing, and then just once for both.
+ * <p>
+ * A single low-priority thread does all the decoding. Tracks asked for with
+ * {@link #getWaveform(String)} go to the front of its queue, while {@link #prefetch(TrackTable)}
+ * queues the whole library behind them.
+ */
+final class WaveformCache {
+
+    private static final String TAG = "WaveformCache";
+    private static final String DIRECTORY = "waveforms";
+    private static final int FILE_MAGIC = 0x57465231; // "WFR1"
+    static final int PEAK_INTERVAL_MS = 100;
+    private static final int MAX_IN_MEMORY = 4;
+    private static volatile WaveformCache sInstance;
+
+    private final MediaLocator mLocator;
+    private final File mDirectory;
+    private final MappedMediaCache mMediaCache;
+    private final LoudnessIndex mLoudnessIndex;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingDeque<String> mQueue = new LinkedBlockingDeque<>();
+    // Guarded by itself. Holds the requests that are waiting for the analysis thread.
+    private final Map<String, CompletableFuture<Waveform>> mRequests = new LinkedHashMap<>();
+    // Only touched on the main thread.
+    private final Map<String, Waveform> mRecent =
+            new LinkedHashMap<String, Waveform>(MAX_IN_MEMORY, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Waveform> eldest) {
+                    return size() > MAX_IN_MEMORY;
+                }
+            };
+
+    private WaveformCache(Context context) {
+        Context appContext = context.getApplicationContext();
+        mLocator = MediaLocator.getInstance(appContext);
+        mDirectory = new File(appContext.getCacheDir(), DIRECTORY);
+        mMediaCache = MappedMediaCache.getInstance(appContext);
+        mLoudnessIndex = LoudnessIndex.getInstance(appContext);
+        Thread thread = new Thread(this::analyzeQueued, "WaveformAnalysis");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static WaveformCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (WaveformCache.class) {
+                if (sInstance == null) {
+                    sInstance = new WaveformCache(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the waveform of a raw resource. The future completes on the main thread, right
+     * away if the waveform was used recently, and fails if the track can't be decoded.
+     */
+    CompletableFuture<Waveform> getWaveform(String resourceName) {
+        Waveform recent = mRecent.get(resourceName);
+        if (recent != null) {
+            return CompletableFuture.completedFuture(recent);
+        }
+        CompletableFuture<Waveform> request;
+        synchronized (mRequests) {
+            request = mRequests.get(resourceName);
+            if (request == null) {
+                request = new CompletableFuture<>();
+                mRequests.put(resourceName, request);
+            }
+        }
+        mQueue.offerFirst(resourceName);
+        return request;
+    }
+
+    /**
+     * Queues every track of {@code tracks} for analysis after anything asked for directly.
+     * Tracks that already have a cache file are only checked, not decoded again.
+     */
+    void prefetch(TrackTable tracks) {
+        for (int row = 0; row < tracks.size(); row++) {
+            mQueue.offerLast(tracks.getResourceName(row));
+        }
+    }
+
+    private void analyzeQueued() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        mLoudnessIndex.loadAnalyzed();
+        while (true) {
+            String resourceName;
+            try {
+                resourceName = mQueue.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Waveform waveform = null;
+            Exception error = null;
+            try {
+                waveform = loadOrAnalyze(resourceName);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "unable to analyze " + resourceName, e);
+                error = e;
+            }
+            final CompletableFuture<Waveform> request;
+            synchronized (mRequests) {
+                request = mRequests.remove(resourceName);
+            }
+            if (request != null) {
+                final Waveform result = waveform;
+                final Exception failure = error;
+                mMainHandler.post(() -> {
+                    if (failure != null) {
+                        request.completeExceptionally(failure);
+                    } else {
+                        mRecent.put(resourceName, result);
+                        request.complete(result);
+                    }
+                });
+            }
+        }
+    }
+
+    private Waveform loadOrAnalyze(String resourceName) throws IOException {
+        int resourceId = mLocator.getId(resourceName);
+        if (resourceId == 0) {
+            throw new IOException("no such raw resource");
+        }
+        // Files are mapped outside the MappedMediaCache, so that prefetching a large library
+        // doesn't evict the mappings warmed up for the tracks about to be played.
+        MappedMedia media = MediaLocator.isFile(resourceName)
+                ? mLocator.map(resourceId) : mMediaCache.get(resourceId);
+        long fingerprint = media.fingerprint();
+        String cacheKey = getCacheKey(resourceName);
+        AtomicFile file = new AtomicFile(new File(mDirectory,
+                cacheKey + "@" + Long.toHexString(fingerprint)));
+        Waveform waveform = null;
+        if (file.getBaseFile().exists()) {
+            try {
+                waveform = read(file);
+            } catch (IOException e) {
+                Log.w(TAG, "discarding unreadable " + file.getBaseFile(), e);
+                file.delete();
+            }
+        }
+        TrackLoudness loudness = mLoudnessIndex.get(resourceName, fingerprint);
+        boolean loudnessKnown = loudness != null;
+        if (waveform != null && loudnessKnown) {
+            return waveform;
+        }
+
+        PeakDownsampler downsampler =
+                waveform == null ? new PeakDownsampler(PEAK_INTERVAL_MS) : null;
+        LoudnessAnalyzer analyzer = loudnessKnown ? null : new LoudnessAnalyzer();
+        TrackDecoder.decode(media, new AnalysisPass(downsampler, analyzer));
+        if (analyzer != null) {
+            loudness = new TrackLoudness();
+            loudness.resourceName = resourceName;
+            loudness.fingerprint = fingerprint;
+            loudness.loudnessLufs = analyzer.getIntegratedLoudness();
+            loudness.peak = analyzer.getPeak();
+            mLoudnessIndex.put(loudness);
+        }
+        if (downsampler != null) {
+            waveform = new Waveform(PEAK_INTERVAL_MS, downsampler.finish());
+            deleteOutdated(cacheKey);
+            write(file, waveform);
+        }
+        return waveform;
+    }
+
+    private static Waveform read(AtomicFile file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file.getBaseFile())))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("not a waveform file");
+            }
+            int intervalMs = in.readInt();
+            byte[] peaks = new byte[in.readInt()];
+            in.readFully(peaks);
+            return new Waveform(intervalMs, peaks);
+        }
+    }
+
+    private void write(AtomicFile file, Waveform waveform) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("unable to create " + mDirectory);
+        }
+        FileOutputStream stream = file.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(waveform.getIntervalMs());
+            out.writeInt(waveform.size());
+            out.write(waveform.getPeaks());
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            file.failWrite(stream);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the file name prefix of a track. Raw resource names can be used as they are, file
+     * paths are hashed since they contain separators and can be longer than a file name.
+     */
+    static String getCacheKey(String resourceName) {
+        if (!MediaLocator.isFile(resourceName)) {
+            return resourceName;
+        }
+        long hash = 1125899906842597L;
+        for (int i = 0; i < resourceName.length(); i++) {
+            hash = 31 * hash + resourceName.charAt(i);
+        }
+        return "file-" + Long.toHexString(hash);
+    }
+
+    /**
+     * Removes the files left from earlier versions of a track.
+     */
+    private void deleteOutdated(String cacheKey) {
+        File[] outdated = mDirectory.listFiles(
+                (directory, name) -> name.startsWith(cacheKey + "@"));
+        if (outdated != null) {
+            for (File file : outdated) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Feeds the decoded PCM to whichever of the two analyses still has to run.
+     */
+    private static final class AnalysisPass implements PcmConsumer {
+
+        private final PeakDownsampler mDownsampler;
+        private final LoudnessAnalyzer mAnalyzer;
+
+        AnalysisPass(PeakDownsampler downsampler, LoudnessAnalyzer analyzer) {
+            mDownsampler = downsampler;
+            mAnalyzer = analyzer;
+        }
+
+        @Override
+        public void onFormat(int sampleRate, int channelCount) {
+            if (mDownsampler != null) {
+                mDownsampler.onFormat(sampleRate, channelCount);
+            }
+            if (mAnalyzer != null) {
+                mAnalyzer.onFormat(sampleRate, channelCount);
+            }
+        }
+
+        @Override
+        public void onSamples(ShortBuffer samples) {
+            int position = samples.position();
+            if (mDownsampler != null) {
+                mDownsampler.onSamples(samples);
+                samples.position(position);
+            }
+            if (mAnalyzer != null) {
+                mAnalyzer.onSamples(samples);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.mediaplayersample;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.AppCompatSeekBar;
+import android.util.AttributeSet;
+
+/**
+ * A {@link android.widget.SeekBar} that draws the {@link Waveform} of the current track behind
+ * the thumb, the played part in the accent color. The bars are laid out once per waveform and
+ * size, drawing only splits them at the current progress.
+ */
+public final class WaveformSeekBar extends AppCompatSeekBar {
+
+    private static final float BAR_WIDTH_DP = 2f;
+    private static final float BAR_GAP_DP = 1f;
+
+    private final Paint mPlayedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mRemainingPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float mBarStep;
+    private Waveform mWaveform;
+    private float[] mBarLines = new float[0]; // x0, y0, x1, y1 per bar
+    private int mBarCount;
+
+    public WaveformSeekBar(Context context) {
+        this(context, null);
+    }
+
+    public WaveformSeekBar(Context context, AttributeSet attrs) {
+        this(context, attrs, android.support.v7.appcompat.R.attr.seekBarStyle);
+    }
+
+    public WaveformSeekBar(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        float density = getResources().getDisplayMetrics().density;
+        mBarStep = (BAR_WIDTH_DP + BAR_GAP_DP) * density;
+        mPlayedPaint.setStrokeWidth(BAR_WIDTH_DP * density);
+        mPlayedPaint.setColor(ContextCompat.getColor(context, R.color.waveformPlayed));
+        mRemainingPaint.setStrokeWidth(BAR_WIDTH_DP * density);
+        mRemainingPaint.setColor(ContextCompat.getColor(context, R.color.waveformRemaining));
+    }
+
+    /**
+     * Shows {@code waveform} behind the bar, or nothing if it's {@code null}.
+     */
+    void setWaveform(Waveform waveform) {
+        mWaveform = waveform;
+        layoutBars();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        layoutBars();
+    }
+
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        if (mBarCount > 0) {
+            int max = getMax();
+            int played = max > 0 ? (int) ((long) mBarCount * getProgress() / max) : 0;
+            canvas.drawLines(mBarLines, 0, played * 4, mPlayedPaint);
+            canvas.drawLines(mBarLines, played * 4, (mBarCount - played) * 4, mRemainingPaint);
+        }
+        super.onDraw(canvas);
+    }
+
+    /**
+     * Gives each bar the loudest peak of the stretch of track it covers.
+     */
+    private void layoutBars() {
+        int left = getPaddingLeft();
+        int width = getWidth() - left - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (mWaveform == null || mWaveform.size() == 0 || width <= 0 || height <= 0) {
+            mBarCount = 0;
+            return;
+        }
+        mBarCount = Math.max(1, (int) (width / mBarStep));
+        if (mBarLines.length < mBarCount * 4) {
+            mBarLines = new float[mBarCount * 4];
+        }
+        float centerY = getPaddingTop() + height / 2f;
+        int peakCount = mWaveform.size();
+        for (int bar = 0; bar < mBarCount; bar++) {
+            int first = (int) ((long) bar * peakCount / mBarCount);
+            int end = Math.max(first + 1, (int) ((long) (bar + 1) * peakCount / mBarCount));
+            float peak = 0;
+            for (int i = first; i < end && i < peakCount; i++) {
+                peak = Math.max(peak, mWaveform.getPeak(i));
+            }
+            float halfHeight = Math.max(0.5f, peak * height / 2f);
+            float x = left + bar * mBarStep + mBarStep / 2f;
+            mBarLines[bar * 4] = x;
+            mBarLines[bar * 4 + 1] = centerY - halfHeight;
+            mBarLines[bar * 4 + 2] = x;
+            mBarLines[bar * 4 + 3] = centerY + halfHeight;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.mediaplayersample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class Mp3SeekIndexTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES_PER_FRAME = 1152;
+    private static final int BITRATE_128 = 9; // index of 128 kbps in an MPEG-1 header
+    private static final int BITRATE_192 = 11;
+
+    @Test
+    public void decodesTheEncodedOffsets() {
+        int[] offsets = {0, 417, 835, 1253, 1671, 200000, 200001, 5000000};
+        Mp3SeekIndex index = new Mp3SeekIndex(SAMPLE_RATE, SAMPLES_PER_FRAME, offsets);
+
+        Mp3SeekIndex decoded =
+                Mp3SeekIndex.decode(SAMPLE_RATE, SAMPLES_PER_FRAME, index.encodeOffsets());
+
+        assertEquals(SAMPLE_RATE, decoded.getSampleRate());
+        assertEquals(SAMPLES_PER_FRAME, decoded.getSamplesPerFrame());
+        assertEquals(offsets.length - 1, decoded.getFrameCount());
+        for (int frame = 0; frame < decoded.getFrameCount(); frame++) {
+            assertEquals(offsets[frame], decoded.getFrameOffset(frame));
+            assertEquals(offsets[frame + 1] - offsets[frame], decoded.getFrameLength(frame));
+        }
+        assertEquals(index.getDurationUs(), decoded.getDurationUs());
+    }
+
+    @Test
+    public void decodesAnEmptyIndex() {
+        Mp3SeekIndex index = new Mp3SeekIndex(SAMPLE_RATE, SAMPLES_PER_FRAME, new int[] {0});
+
+        Mp3SeekIndex decoded =
+                Mp3SeekIndex.decode(SAMPLE_RATE, SAMPLES_PER_FRAME, index.encodeOffsets());
+
+        assertEquals(0, decoded.getFrameCount());
+    }
+
+    @Test
+    public void startsDecodingFarEnoughBackForTheBitReservoir() {
+        // 32 kbps frames leave 66 bytes of main data each, 320 kbps frames over a thousand.
+        assertEquals(12, constantBitrate(104).getDecodeStartFrame(20));
+        assertEquals(18, constantBitrate(417).getDecodeStartFrame(20));
+        assertEquals(19, constantBitrate(1044).getDecodeStartFrame(20));
+        assertEquals(0, constantBitrate(104).getDecodeStartFrame(3));
+    }
+
+    @Test
+    public void needsExactSeekingOnlyForVbrWithoutSeekTable() {
+        int[] cbr = {BITRATE_128, BITRATE_128, BITRATE_128, BITRATE_128};
+        int[] vbr = {BITRATE_128, BITRATE_192, BITRATE_128, BITRATE_192};
+        assertFalse(Mp3SeekIndex.needsExactSeeking(stream(false, false, cbr)));
+        assertTrue(Mp3SeekIndex.needsExactSeeking(stream(false, false, vbr)));
+        assertTrue(Mp3SeekIndex.needsExactSeeking(stream(true, false, vbr)));
+        assertFalse(Mp3SeekIndex.needsExactSeeking(stream(true, true, vbr)));
+    }
+
+    /**
+     * An MPEG-1 Layer III stereo stream at 44.1 kHz with frames of the given bitrate indexes,
+     * optionally led by a Xing header frame.
+     */
+    private static ByteBuffer stream(boolean xing, boolean toc, int... bitrates) {
+        ByteBuffer media = ByteBuffer.allocate(8192);
+        if (xing) {
+            int start = media.position();
+            media.putInt(header(BITRATE_128)).position(start + 36);
+            media.put(new byte[] {'X', 'i', 'n', 'g'}).putInt(toc ? 0x7 : 0x3);
+            media.position(start + frameLength(BITRATE_128));
+        }
+        for (int bitrate : bitrates) {
+            int start = media.position();
+            media.putInt(header(bitrate)).position(start + frameLength(bitrate));
+        }
+        media.flip();
+        return media;
+    }
+
+    private static int header(int bitrateIndex) {
+        return 0xfffb0000 | bitrateIndex << 12;
+    }
+
+    private static int frameLength(int bitrateIndex) {
+        return 144 * (bitrateIndex == BITRATE_128 ? 128000 : 192000) / SAMPLE_RATE;
+    }
+
+    private static Mp3SeekIndex constantBitrate(int frameLength) {
+        int[] offsets = new int[41];
+        for (int frame = 0; frame < offsets.length; frame++) {
+            offsets[frame] = frame * frameLength;
+        }
+        return new Mp3SeekIndex(SAMPLE_RATE, SAMPLES_PER_FRAME, offsets);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.android.mediaplayersample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchIndexTest {
+
+    private final SearchIndex mIndex = new SearchIndex();
+
+    @Before
+    public void setUp() {
+        TrackTable tracks = new TrackTable();
+        tracks.add("blue_train", "Blue Train", "John Coltrane", 0);
+        tracks.add("train_of_thought", "Train of Thought", "Blue Note", 0);
+        tracks.add("trains", "Trains", "Someone", 0);
+        tracks.add("night_train", "Night Train", "Oscar Peterson", 0);
+        tracks.add("cafe", "Caf\u00e9 au lait", "Nobody", 0);
+        mIndex.update(tracks.snapshot());
+    }
+
+    @Test
+    public void ranksFirstWordsAndWholeWordsFirst() {
+        // A whole first word, a prefix of a first word, then whole later words in table order.
+        assertArrayEquals(new int[] {1, 2, 0, 3}, mIndex.search("train"));
+    }
+
+    @Test
+    public void ranksTitlesAboveArtists() {
+        assertArrayEquals(new int[] {0, 1}, mIndex.search("blue"));
+    }
+
+    @Test
+    public void matchesRowsHoldingEveryWord() {
+        assertArrayEquals(new int[] {0, 1}, mIndex.search("blue tra"));
+        assertArrayEquals(new int[0], mIndex.search("blue night"));
+    }
+
+    @Test
+    public void foldsCaseAndAccents() {
+        assertArrayEquals(new int[] {4}, mIndex.search("CAFE"));
+    }
+
+    @Test
+    public void filtersNothingWithoutWords() {
+        assertNull(mIndex.search(" "));
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.mediaplayersample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class SessionStoreTest {
+
+    @Test
+    public void decodesTheEncodedSession() throws IOException {
+        SessionStore.Session session = new SessionStore.Session();
+        session.playMode = PlayQueue.Mode.SHUFFLE;
+        session.currentSong = 12;
+        session.trackCount = 40;
+        session.shuffleSeed = 0x0123456789abcdefL;
+        session.shuffleCycle = 3;
+        session.shuffleCycleStart = 7;
+        session.shufflePosition = 25;
+        session.resourceName = "/sdcard/Music/Caf\u00e9.mp3";
+        session.positionMs = 93500;
+
+        SessionStore.Session decoded = roundTrip(session);
+
+        assertEquals(session.playMode, decoded.playMode);
+        assertEquals(session.currentSong, decoded.currentSong);
+        assertEquals(session.trackCount, decoded.trackCount);
+        assertEquals(session.shuffleSeed, decoded.shuffleSeed);
+        assertEquals(session.shuffleCycle, decoded.shuffleCycle);
+        assertEquals(session.shuffleCycleStart, decoded.shuffleCycleStart);
+        assertEquals(session.shufflePosition, decoded.shufflePosition);
+        assertEquals(session.resourceName, decoded.resourceName);
+        assertEquals(session.positionMs, decoded.positionMs);
+    }
+
+    @Test
+    public void keepsTheQueueOfATrackNameTooLongToStore() throws IOException {
+        SessionStore.Session session = new SessionStore.Session();
+        session.currentSong = 5;
+        session.resourceName = "/" + new String(new char[2000]).replace('\0', 'a');
+
+        SessionStore.Session decoded = roundTrip(session);
+
+        assertEquals(5, decoded.currentSong);
+        assertNull(decoded.resourceName);
+    }
+
+    @Test
+    public void decodesAMissingTrackName() throws IOException {
+        assertNull(roundTrip(new SessionStore.Session()).resourceName);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherRecords() throws IOException {
+        SessionStore.decode(ByteBuffer.wrap(new byte[64]));
+    }
+
+    private static SessionStore.Session roundTrip(SessionStore.Session session)
+            throws IOException {
+        return SessionStore.decode(ByteBuffer.wrap(SessionStore.encode(session)));
+    }
+}
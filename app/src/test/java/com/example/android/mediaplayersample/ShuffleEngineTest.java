@@ -0,0 +1,73 @@
+package com.example.android.mediaplayersample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class ShuffleEngineTest {
+
+    private static final long SEED = 0x5eedL;
+    private static final int TRACKS = 20;
+
+    @Test
+    public void playsEveryTrackOncePerCycle() {
+        ShuffleEngine shuffle = newShuffle();
+        for (int cycle = 0; cycle < 5; cycle++) {
+            Set<Integer> played = new HashSet<>();
+            played.add(shuffle.getCurrent());
+            for (int i = 1; i < TRACKS; i++) {
+                assertTrue("repeated within cycle " + cycle, played.add(shuffle.moveToNext()));
+            }
+            assertEquals(TRACKS, played.size());
+            shuffle.moveToNext();
+        }
+    }
+
+    @Test
+    public void neverRepeatsAcrossCycles() {
+        ShuffleEngine shuffle = newShuffle();
+        int previous = shuffle.getCurrent();
+        for (int i = 0; i < TRACKS * 50; i++) {
+            int next = shuffle.peekNext(1);
+            assertEquals(next, shuffle.moveToNext());
+            assertNotEquals("track " + previous + " played twice in a row", previous, next);
+            previous = next;
+        }
+    }
+
+    @Test
+    public void restoreResumesTheWalkExactly() {
+        ShuffleEngine shuffle = newShuffle();
+        for (int i = 0; i < TRACKS * 3 + 7; i++) {
+            shuffle.moveToNext();
+        }
+        ShuffleEngine restored = newShuffle();
+        restored.restore(shuffle.getCycle(), shuffle.getCycleStart(), shuffle.getPosition());
+
+        assertEquals(shuffle.getCurrent(), restored.getCurrent());
+        for (int i = 0; i < TRACKS * 2; i++) {
+            assertEquals(shuffle.moveToNext(), restored.moveToNext());
+        }
+    }
+
+    @Test
+    public void restoreIgnoresAWalkOfAnotherLibrary() {
+        ShuffleEngine shuffle = newShuffle();
+        int current = shuffle.getCurrent();
+        shuffle.restore(1, TRACKS, 0);
+        shuffle.restore(1, 0, TRACKS);
+        assertEquals(current, shuffle.getCurrent());
+        assertEquals(0, shuffle.getPosition());
+    }
+
+    private static ShuffleEngine newShuffle() {
+        ShuffleEngine shuffle = new ShuffleEngine(SEED);
+        shuffle.setTrackCount(TRACKS);
+        return shuffle;
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Measures formatting the durations of a whole catalog for display.
+ */
+@State(Scope.Thread)
+public class DurationFormatBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int trackCount;
+
+    private int[] mDurationsMs;
+    private final char[] mChars = new char[DurationFormatter.MAX_LENGTH];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        mDurationsMs = new int[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mDurationsMs[i] = random.nextInt(2 * 60 * 60 * 1000); // up to two hours
+        }
+    }
+
+    @Benchmark
+    public void formatCatalog(Blackhole blackhole) {
+        for (int durationMs : mDurationsMs) {
+            blackhole.consume(DurationFormatter.format(durationMs));
+        }
+    }
+
+    @Benchmark
+    public void formatCatalogIntoBuffer(Blackhole blackhole) {
+        for (int durationMs : mDurationsMs) {
+            blackhole.consume(DurationFormatter.format(durationMs, mChars));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the metadata load path of a library scan: reconciling the persistent index with
+ * the scanned tracks. Half of the catalog is unchanged, a quarter changed and a quarter is new;
+ * extraction is replaced by a fake that just builds the entity.
+ */
+@State(Scope.Thread)
+public class LibraryScanBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int trackCount;
+
+    private String[] mResourceNames;
+    private long[] mFingerprints;
+    private List<TrackEntity> mIndexed;
+
+    private final TrackIndexMerger.MetadataExtractor mExtractor = (resourceName, fingerprint) -> {
+        TrackEntity track = new TrackEntity();
+        track.resourceName = resourceName;
+        track.fingerprint = fingerprint;
+        track.title = resourceName;
+        track.artist = "Artist";
+        track.durationMs = 180000;
+        return track;
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mResourceNames = new String[trackCount];
+        mFingerprints = new long[trackCount];
+        mIndexed = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            mResourceNames[i] = "track_" + i;
+            mFingerprints[i] = i * 31L;
+            if (i % 4 < 2) {
+                mIndexed.add(mExtractor.extract(mResourceNames[i], mFingerprints[i]));
+            } else if (i % 4 == 2) {
+                mIndexed.add(mExtractor.extract(mResourceNames[i], -1));
+            }
+        }
+    }
+
+    @Benchmark
+    public void reconcileIndex(Blackhole blackhole) {
+        TrackIndexMerger merger = new TrackIndexMerger(mIndexed);
+        for (int i = 0; i < trackCount; i++) {
+            blackhole.consume(merger.resolve(mResourceNames[i], mFingerprints[i], mExtractor));
+        }
+        blackhole.consume(merger.finishStale());
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Measures type-ahead search: one query per keystroke while a title and artist are typed, and
+ * indexing a whole catalog, as after the library changed.
+ */
+@State(Scope.Thread)
+public class SearchBenchmark {
+
+    private static final String[] WORDS = {"love", "night", "blue", "dance", "heart", "fire",
+            "dream", "rain", "sun", "moon", "time", "life", "world", "star", "road", "caf\u00e9"};
+    private static final String[] KEYSTROKES =
+            {"d", "dr", "dre", "drea", "dream", "dream ", "dream a", "dream ar", "dream art"};
+
+    @Param({"1000", "10000", "100000"})
+    public int trackCount;
+
+    private TrackTable mTracks;
+    private SearchIndex mIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        mTracks = new TrackTable();
+        for (int i = 0; i < trackCount; i++) {
+            String title = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            mTracks.add("track_" + i, title, "Artist " + i % 500, i * 1000);
+        }
+        mIndex = new SearchIndex();
+        mIndex.update(mTracks.snapshot());
+    }
+
+    @Benchmark
+    public void typeAhead(Blackhole blackhole) {
+        for (String query : KEYSTROKES) {
+            blackhole.consume(mIndex.search(query));
+        }
+    }
+
+    @Benchmark
+    public SearchIndex buildIndex() {
+        SearchIndex index = new SearchIndex();
+        index.update(mTracks.snapshot());
+        return index;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures walking the frames of a VBR MP3 stream into a seek index, restoring a stored index
+ * and resolving seeks with it. The stream is synthesized: MPEG-1 Layer III frame headers at
+ * 44.1 kHz with a random bitrate each, filled with zeros.
+ */
+@State(Scope.Thread)
+public class SeekIndexBenchmark {
+
+    private static final int[] BITRATE_INDEXES = {9, 10, 11, 12, 13, 14}; // 128 to 320 kbps
+    private static final int[] BITRATES_KBPS = {128, 160, 192, 224, 256, 320};
+
+    @Param({"3", "10", "60"})
+    public int minutes;
+
+    private ByteBuffer mStream;
+    private Mp3SeekIndex mIndex;
+    private byte[] mEncodedOffsets;
+    private long[] mSeekTimesUs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        int frameCount = minutes * 60 * 44100 / 1152;
+        mStream = ByteBuffer.allocate(frameCount * 1045);
+        for (int i = 0; i < frameCount; i++) {
+            int bitrate = random.nextInt(BITRATE_INDEXES.length);
+            int length = 144000 * BITRATES_KBPS[bitrate] / 44100;
+            if (mStream.remaining() < length) {
+                break;
+            }
+            int position = mStream.position();
+            mStream.putInt(0xfffb0000 | BITRATE_INDEXES[bitrate] << 12);
+            mStream.position(position + length);
+        }
+        mStream.flip();
+        mIndex = Mp3SeekIndex.build(mStream);
+        mEncodedOffsets = mIndex.encodeOffsets();
+        mSeekTimesUs = new long[1000];
+        for (int i = 0; i < mSeekTimesUs.length; i++) {
+            mSeekTimesUs[i] = (long) (random.nextDouble() * mIndex.getDurationUs());
+        }
+    }
+
+    @Benchmark
+    public Mp3SeekIndex buildIndex() {
+        return Mp3SeekIndex.build(mStream);
+    }
+
+    @Benchmark
+    public Mp3SeekIndex restoreIndex() {
+        return Mp3SeekIndex.decode(mIndex.getSampleRate(), mIndex.getSamplesPerFrame(),
+                mEncodedOffsets);
+    }
+
+    @Benchmark
+    public void resolveSeeks(Blackhole blackhole) {
+        for (long seekUs : mSeekTimesUs) {
+            blackhole.consume(mIndex.getFrameOffset(mIndex.getFrameAt(seekUs)));
+        }
+    }
+}
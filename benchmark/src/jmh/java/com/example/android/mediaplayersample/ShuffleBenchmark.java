@@ -0,0 +1,49 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures building the play order of a catalog and moving through it, in shuffle and
+ * standard order.
+ */
+@State(Scope.Thread)
+public class ShuffleBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int trackCount;
+
+    private PlayQueue mShuffled;
+    private PlayQueue mStandard;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mShuffled = new PlayQueue(new ShuffleEngine(42));
+        mShuffled.setMode(PlayQueue.Mode.SHUFFLE);
+        mShuffled.setTrackCount(trackCount);
+        mStandard = new PlayQueue(new ShuffleEngine(42));
+        mStandard.setTrackCount(trackCount);
+    }
+
+    @Benchmark
+    public int nextShuffled() {
+        return mShuffled.moveToNext();
+    }
+
+    @Benchmark
+    public int nextStandard() {
+        return mStandard.moveToNext();
+    }
+
+    @Benchmark
+    public int shuffleCatalog() {
+        PlayQueue queue = new PlayQueue(new ShuffleEngine(42));
+        queue.setTrackCount(trackCount);
+        queue.setMode(PlayQueue.Mode.SHUFFLE);
+        return queue.peekNext(1);
+    }
+}
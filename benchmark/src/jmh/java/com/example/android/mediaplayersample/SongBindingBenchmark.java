@@ -0,0 +1,45 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures binding every row of a catalog, as a full scroll through the list would. Rows format
+ * the duration into a buffer of their own, like the adapter's view holders.
+ */
+@State(Scope.Thread)
+public class SongBindingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int trackCount;
+
+    private SongRowBinder mBinder;
+    private final char[] mDurationChars = new char[DurationFormatter.MAX_LENGTH];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TrackTable tracks = new TrackTable();
+        for (int i = 0; i < trackCount; i++) {
+            tracks.add("track_" + i, "Title " + i, "Artist " + i % 500, i * 1000);
+        }
+        mBinder = new SongRowBinder(tracks);
+    }
+
+    @Benchmark
+    public void bindAllRows(Blackhole blackhole) {
+        SongRow row = (title, author, durationMs) -> {
+            blackhole.consume(title);
+            blackhole.consume(author);
+            blackhole.consume(DurationFormatter.format(durationMs, mDurationChars));
+            blackhole.consume(mDurationChars);
+        };
+        for (int position = 0; position < trackCount; position++) {
+            mBinder.bind(position, row);
+        }
+    }
+}
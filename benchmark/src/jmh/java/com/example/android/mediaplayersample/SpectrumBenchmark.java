@@ -0,0 +1,54 @@
+package com.example.android.mediaplayersample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Measures analyzing one frame of captured audio into spectrum bands, the work the visualizer
+ * does per display frame. The blocks are a mix of three tones and noise, 8-bit like a
+ * Visualizer capture. Run with {@code -prof gc} to check that a frame allocates nothing.
+ */
+@State(Scope.Thread)
+public class SpectrumBenchmark {
+
+    private static final int SAMPLE_RATE_HZ = 44100;
+    private static final int BLOCK_COUNT = 16;
+
+    @Param({"256", "1024"})
+    public int captureSize;
+
+    private SpectrumAnalyzer mAnalyzer;
+    private byte[][] mBlocks;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        mAnalyzer = new SpectrumAnalyzer(captureSize, SAMPLE_RATE_HZ, 32);
+        mBlocks = new byte[BLOCK_COUNT][captureSize];
+        int sample = 0;
+        for (byte[] block : mBlocks) {
+            for (int i = 0; i < captureSize; i++, sample++) {
+                double t = (double) sample / SAMPLE_RATE_HZ;
+                double value = 0.4 * Math.sin(2 * Math.PI * 110 * t)
+                        + 0.2 * Math.sin(2 * Math.PI * 880 * t)
+                        + 0.1 * Math.sin(2 * Math.PI * 5000 * t)
+                        + 0.1 * (random.nextDouble() * 2 - 1);
+                block[i] = (byte) (128 + Math.round(value * 127));
+            }
+        }
+    }
+
+    @Benchmark
+    public float[] analyzeFrame() {
+        mNext = (mNext + 1) % BLOCK_COUNT;
+        mAnalyzer.analyze(mBlocks[mNext], 1 / 60f);
+        return mAnalyzer.getLevels();
+    }
+}